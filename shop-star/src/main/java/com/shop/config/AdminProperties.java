@@ -0,0 +1,24 @@
+package com.shop.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 运维接口的配置 shop.admin.*
+ *
+ * @author humeng
+ */
+@Data
+@Component
+@ConfigurationProperties("shop.admin")
+public class AdminProperties {
+
+    /**
+     * 可以访问 /admin/** 接口和 /actuator/metrics/** 的用户id,为空时所有用户都不能访问
+     */
+    private Set<Long> userIds = new HashSet<>();
+}
@@ -0,0 +1,99 @@
+package com.shop.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 笔记相关的配置 shop.blog.*
+ *
+ * @author humeng
+ */
+@Data
+@Component
+@ConfigurationProperties("shop.blog")
+public class BlogProperties {
+
+    /**
+     * 热门笔记排行榜配置
+     */
+    private Hot hot = new Hot();
+
+    /**
+     * 点赞数同步到数据库的配置
+     */
+    private Like like = new Like();
+
+    /**
+     * 发布笔记后推送到粉丝收件箱的配置
+     */
+    private Fanout fanout = new Fanout();
+
+    @Data
+    public static class Hot {
+        /**
+         * 半衰期(小时),一次点赞对热度的贡献每经过一个半衰期减半
+         */
+        private double halfLifeHours = 24;
+        /**
+         * 发布笔记时的初始热度,相当于同一时刻的点赞数
+         */
+        private double postWeight = 3;
+        /**
+         * 排行榜保留的最大笔记数
+         */
+        private long maxSize = 10000;
+        /**
+         * 重新归一化热度的间隔(毫秒)
+         */
+        private long normalizeMillis = 3600000;
+    }
+
+    @Data
+    public static class Like {
+        /**
+         * 每批同步的笔记数,一批执行一次pipeline和一条update语句
+         */
+        private int flushBatchSize = 500;
+    }
+
+    @Data
+    public static class Fanout {
+        /**
+         * 每个节点的推送线程数
+         */
+        private int workers = 2;
+        /**
+         * 每次读取的最大消息数
+         */
+        private int readCount = 10;
+        /**
+         * 每页查询的粉丝数,也是一次pipeline写入的收件箱数
+         */
+        private int batchSize = 500;
+        /**
+         * 每个收件箱保留的最大笔记数
+         */
+        private long inboxMaxSize = 1000;
+        /**
+         * 粉丝数达到该值的作者不再推送到粉丝的收件箱,只写入自己的发件箱,由粉丝读取时拉取
+         */
+        private long bigAuthorThreshold = 10000;
+        /**
+         * 没有消息时阻塞等待的时间(毫秒)
+         */
+        private long blockMillis = 2000;
+        /**
+         * 消息投递后超过该时间(毫秒)还没有确认,由其他消费者认领
+         */
+        private long claimIdleMillis = 60000;
+        /**
+         * 消息的最大投递次数,超过后移入死信队列
+         */
+        private int maxDeliveries = 5;
+        /**
+         * 有消息推送失败后,重新读取pending-list之前等待的时间(毫秒)
+         */
+        private long retryBackoffMillis = 1000;
+    }
+}
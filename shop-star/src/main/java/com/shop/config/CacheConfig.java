@@ -0,0 +1,85 @@
+package com.shop.config;
+
+import com.shop.utils.BinaryCacheCodec;
+import com.shop.utils.CacheClient;
+import com.shop.utils.CacheCodec;
+import com.shop.utils.JsonCacheCodec;
+import com.shop.utils.MigratingCacheCodec;
+import com.shop.utils.SeckillVoucherRegistry;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.nio.charset.StandardCharsets;
+
+import static com.shop.utils.RedisConstants.CACHE_BLOOM_CHANNEL;
+import static com.shop.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static com.shop.utils.RedisConstants.CACHE_LOADED_CHANNEL;
+import static com.shop.utils.RedisConstants.SECKILL_VOUCHER_CHANNEL;
+
+/**
+ * 缓存配置,订阅redis频道接收其他节点的缓存失效、缓存重建完成、布隆过滤器新增元素和秒杀优惠券状态的广播,
+ * 以及缓存值的编解码器
+ *
+ * @author humeng
+ */
+@Configuration
+public class CacheConfig {
+
+    /**
+     * 缓存值以字节数组读写,由{@link CacheCodec}负责编解码
+     */
+    @Bean
+    public RedisTemplate<String, byte[]> cacheRedisTemplate(RedisConnectionFactory connectionFactory) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(RedisSerializer.string());
+        template.setValueSerializer(RedisSerializer.byteArray());
+        template.setHashKeySerializer(RedisSerializer.string());
+        template.setHashValueSerializer(RedisSerializer.byteArray());
+        return template;
+    }
+
+    @Bean
+    public CacheCodec cacheCodec(CacheProperties cacheProperties) {
+        CacheProperties.Codec codec = cacheProperties.getCodec();
+        CacheCodec json = new JsonCacheCodec();
+        CacheCodec binary = new BinaryCacheCodec(codec.getCompressThreshold());
+        boolean useJson = "json".equalsIgnoreCase(codec.getFormat());
+        CacheCodec primary = useJson ? json : binary;
+        if (!codec.isMigration()) {
+            return primary;
+        }
+        // 迁移模式下两种格式都能读取,可以在不清空缓存的情况下切换格式
+        return new MigratingCacheCodec(primary, useJson ? binary : json);
+    }
+
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(
+            RedisConnectionFactory connectionFactory, CacheClient cacheClient,
+            SeckillVoucherRegistry seckillVoucherRegistry) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        // 收到失效消息,删除本节点的本地缓存
+        container.addMessageListener(
+                (message, pattern) -> cacheClient.evictLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        // 收到其他节点重建缓存完成的消息,唤醒本节点等待的线程
+        container.addMessageListener(
+                (message, pattern) -> cacheClient.onLoaded(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_LOADED_CHANNEL));
+        // 收到其他节点新增数据的消息,更新本地的布隆过滤器
+        container.addMessageListener(
+                (message, pattern) -> cacheClient.onBloomAdd(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_BLOOM_CHANNEL));
+        // 收到其他节点的优惠券售罄、失效或补充库存的消息,更新本地标记
+        container.addMessageListener(
+                (message, pattern) -> seckillVoucherRegistry.onMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(SECKILL_VOUCHER_CHANNEL));
+        return container;
+    }
+}
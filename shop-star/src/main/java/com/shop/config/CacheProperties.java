@@ -0,0 +1,216 @@
+package com.shop.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 缓存相关的配置 shop.cache.*
+ *
+ * @author humeng
+ */
+@Data
+@Component
+@ConfigurationProperties("shop.cache")
+public class CacheProperties {
+
+    /**
+     * 进程内一级缓存(L1)配置
+     */
+    private Local local = new Local();
+
+    /**
+     * 布隆过滤器配置
+     */
+    private Bloom bloom = new Bloom();
+
+    /**
+     * 缓存值编解码配置
+     */
+    private Codec codec = new Codec();
+
+    /**
+     * 缓存过期与提前刷新配置
+     */
+    private Refresh refresh = new Refresh();
+
+    /**
+     * 逻辑过期缓存的重建线程池配置
+     */
+    private Rebuild rebuild = new Rebuild();
+
+    /**
+     * 缓存预热配置
+     */
+    private WarmUp warmUp = new WarmUp();
+
+    /**
+     * 热点key探测配置
+     */
+    private HotKey hotKey = new HotKey();
+
+    /**
+     * 缓存删除配置
+     */
+    private Invalidation invalidation = new Invalidation();
+
+    @Data
+    public static class Local {
+        /**
+         * 是否开启本地缓存
+         */
+        private boolean enabled = true;
+        /**
+         * 最大条目数
+         */
+        private long maximumSize = 10000;
+        /**
+         * 最大权重,按缓存值的字节数估算
+         */
+        private long maximumWeight = 64 * 1024 * 1024;
+        /**
+         * 本地缓存写入后的过期时间(秒),兜底跨节点失效消息丢失的情况
+         */
+        private long expireSeconds = 60;
+    }
+
+    @Data
+    public static class Bloom {
+        /**
+         * 预计元素数量
+         */
+        private long expectedInsertions = 1000000;
+        /**
+         * 期望的误判率
+         */
+        private double fpp = 0.01;
+    }
+
+    @Data
+    public static class Codec {
+        /**
+         * 写入格式:binary或json
+         */
+        private String format = "binary";
+        /**
+         * 迁移模式,读取时同时兼容binary和json两种格式,切换格式期间需要开启
+         */
+        private boolean migration = true;
+        /**
+         * binary格式下超过该字节数时使用LZ4压缩
+         */
+        private int compressThreshold = 1024;
+    }
+
+    @Data
+    public static class Refresh {
+        /**
+         * 过期时间的随机抖动比例,实际过期时间为 ttl * (1 + [0, ttlJitter)),避免同时写入的key同时过期
+         */
+        private double ttlJitter = 0.1;
+        /**
+         * 提前刷新的激进程度,越大越早刷新,1.0为XFetch论文中的推荐值
+         */
+        private double beta = 1.0;
+    }
+
+    @Data
+    public static class Rebuild {
+        /**
+         * 重建线程数
+         */
+        private int parallelism = 10;
+        /**
+         * 等待队列的最大长度
+         */
+        private int queueCapacity = 1000;
+        /**
+         * 应用关闭时等待重建任务执行完成的最长时间(秒)
+         */
+        private long drainSeconds = 10;
+    }
+
+    @Data
+    public static class WarmUp {
+        /**
+         * 是否在启动时预热
+         */
+        private boolean enabled = true;
+        /**
+         * 预热访问次数最多的店铺数量
+         */
+        private int topN = 1000;
+        /**
+         * redis中保留访问次数的店铺数量
+         */
+        private long recordSize = 5000;
+        /**
+         * 本节点两次累加之间最多统计的店铺数量,超过后新的店铺不再统计
+         */
+        private int hitsMaxSize = 10000;
+        /**
+         * 每批查询和写入的店铺数量
+         */
+        private int batchSize = 100;
+        /**
+         * 并行预热的线程数
+         */
+        private int parallelism = 4;
+        /**
+         * 预热的最长时间(秒),超时后放弃剩余批次,应用照常启动
+         */
+        private long timeoutSeconds = 30;
+    }
+
+    @Data
+    public static class HotKey {
+        /**
+         * 是否开启热点key探测
+         */
+        private boolean enabled = true;
+        /**
+         * 每个窗口的时长(毫秒)
+         */
+        private long windowMillis = 10000;
+        /**
+         * 窗口数量,滑动窗口的总时长为 windowMillis * windows
+         */
+        private int windows = 6;
+        /**
+         * Count-Min Sketch的行数
+         */
+        private int depth = 4;
+        /**
+         * Count-Min Sketch的列数
+         */
+        private int width = 4096;
+        /**
+         * 滑动窗口内访问次数达到该值的key为热点key
+         */
+        private long threshold = 3000;
+        /**
+         * 最多保留的热点key数量
+         */
+        private int topK = 100;
+        /**
+         * 采样间隔,每sampleEvery次访问记录一次,1为全部记录
+         */
+        private int sampleEvery = 1;
+        /**
+         * 热点key本地副本的过期时间(毫秒)
+         */
+        private long localTtlMillis = 2000;
+    }
+
+    @Data
+    public static class Invalidation {
+        /**
+         * 事务提交后延迟再删除一次缓存(毫秒),删除在第一次删除和提交之间被旧数据回填的缓存,小于等于0不延迟删除
+         */
+        private long delayMillis = 500;
+        /**
+         * 每次从重试队列中取出的删除任务数
+         */
+        private int retryBatchSize = 100;
+    }
+}
@@ -0,0 +1,31 @@
+package com.shop.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 全局id生成器的配置 shop.id-worker.*
+ *
+ * @author humeng
+ */
+@Data
+@Component
+@ConfigurationProperties("shop.id-worker")
+public class IdWorkerProperties {
+
+    /**
+     * 是否使用号段模式,false时每个id都执行一次INCR
+     */
+    private boolean segmentEnabled = true;
+
+    /**
+     * 每次从redis申请的号段长度
+     */
+    private int step = 1000;
+
+    /**
+     * 当前号段剩余的比例低于该值时异步申请下一个号段
+     */
+    private double prefetchRatio = 0.2;
+}
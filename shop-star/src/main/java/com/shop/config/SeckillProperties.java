@@ -0,0 +1,85 @@
+package com.shop.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 秒杀相关的配置 shop.seckill.*
+ *
+ * @author humeng
+ */
+@Data
+@Component
+@ConfigurationProperties("shop.seckill")
+public class SeckillProperties {
+
+    /**
+     * 库存分片数,每个分片有自己的库存、下单用户集合和订单消息队列。0为不分片,使用原来的单个key,
+     * 这些key不在同一个slot,只能用于单机或主从部署,redis集群必须大于0
+     */
+    private int partitions = 0;
+
+    /**
+     * 本地售罄、失效标记的有效期(秒),过期后重新执行脚本确认,错过清除标记的广播时也能恢复
+     */
+    private long flagTtlSeconds = 30;
+
+    /**
+     * 订单消息队列消费者配置
+     */
+    private Consumer consumer = new Consumer();
+
+    /**
+     * 秒杀预热配置
+     */
+    private Preheat preheat = new Preheat();
+
+    @Data
+    public static class Consumer {
+        /**
+         * 每个节点的消费者线程数
+         */
+        private int workers = 4;
+        /**
+         * 每次读取的最大消息数
+         */
+        private int batchSize = 200;
+        /**
+         * 没有消息时阻塞等待的时间(毫秒)
+         */
+        private long blockMillis = 2000;
+        /**
+         * 消息投递后超过该时间(毫秒)还没有确认,认为消费者已经宕机,由其他消费者认领
+         */
+        private long claimIdleMillis = 60000;
+        /**
+         * 应用关闭时等待消费者处理完当前消息的最长时间(秒)
+         */
+        private long shutdownSeconds = 10;
+        /**
+         * 消息的最大投递次数,超过后移入死信队列
+         */
+        private int maxDeliveries = 5;
+        /**
+         * pending-list中的消息处理失败后,重新读取之前等待的时间(毫秒)
+         */
+        private long retryBackoffMillis = 1000;
+    }
+
+    @Data
+    public static class Preheat {
+        /**
+         * 是否定时预热
+         */
+        private boolean enabled = true;
+        /**
+         * 预热的间隔(毫秒),同时也是redis数据丢失后恢复库存的最长延迟
+         */
+        private long intervalMillis = 60000;
+        /**
+         * 预热在该时间(分钟)内开始的优惠券
+         */
+        private long aheadMinutes = 30;
+    }
+}
@@ -1,5 +1,6 @@
 package com.shop.config;
 
+import com.shop.interceptor.AdminInterceptor;
 import com.shop.interceptor.LoginInterceptor;
 import com.shop.interceptor.RefreshTokenInterceptor;
 import org.springframework.context.annotation.Configuration;
@@ -15,6 +16,9 @@ public class WebMvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private AdminProperties adminProperties;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         // 拦截要登陆的路径,order为1
@@ -26,8 +30,14 @@ public class WebMvcConfig implements WebMvcConfigurer {
                         "/shop/**",
                         "/shop-type/**",
                         "/upload/**",
-                        "/voucher/**"
+                        "/voucher/**",
+                        // 只放行健康检查,供探针使用
+                        "/actuator/health/**"
                 ).order(1);
+        // 运维接口和监控指标只允许管理员访问,order为2
+        registry.addInterceptor(new AdminInterceptor(adminProperties))
+                .addPathPatterns("/admin/**", "/actuator/metrics/**")
+                .order(2);
 // 拦截所有请求，order为0，先执⾏
         registry.addInterceptor(new
                 RefreshTokenInterceptor(stringRedisTemplate)).order(0);
@@ -0,0 +1,57 @@
+package com.shop.controller;
+
+
+import com.shop.dto.Result;
+import com.shop.service.IVoucherOrderService;
+import com.shop.utils.HotKeyDetector;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 运维接口,只允许shop.admin.user-ids中的用户访问
+ * </p>
+ *
+ * @author humeng
+ */
+@RestController
+@RequestMapping("/admin")
+public class AdminController {
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    /**
+     * 查询本节点当前的热点key
+     *
+     * @return 热点key及最近一个滑动窗口内估算的访问次数,按访问次数从大到小排序
+     */
+    @GetMapping("/cache/hot-keys")
+    public Result queryHotKeys() {
+        return Result.ok(hotKeyDetector.hotKeys());
+    }
+
+    /**
+     * 查询订单死信队列中最新的消息
+     */
+    @GetMapping("/voucher-order/dead-letters")
+    public Result queryDeadLetters(@RequestParam(value = "count", defaultValue = "50") Integer count) {
+        return voucherOrderService.queryDeadLetters(count);
+    }
+
+    /**
+     * 重新投递一条订单死信消息
+     */
+    @PostMapping("/voucher-order/dead-letters/{id}/replay")
+    public Result replayDeadLetter(@PathVariable("id") String dlqId) {
+        return voucherOrderService.replayDeadLetter(dlqId);
+    }
+}
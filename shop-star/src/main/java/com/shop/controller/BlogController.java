@@ -35,6 +35,12 @@ public class BlogController {
         return blogService.saveBlog(blog);
     }
 
+    @PutMapping
+    public Result updateBlog(@RequestBody Blog blog) {
+
+        return blogService.updateBlog(blog);
+    }
+
     @PutMapping("/like/{id}")
     public Result likeBlog(@PathVariable("id") Long id) {
 
@@ -0,0 +1,25 @@
+package com.shop.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 秒杀订单的处理状态
+ *
+ * @author humeng
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OrderStatusDTO {
+    private Long orderId;
+    /**
+     * QUEUED:排队中 CREATED:已创建 FAILED:失败
+     */
+    private String state;
+    /**
+     * 失败原因
+     */
+    private String reason;
+}
@@ -2,6 +2,9 @@ package com.shop.mapper;
 
 import com.shop.entity.Blog;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -12,4 +15,11 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface BlogMapper extends BaseMapper<Blog> {
 
+    /**
+     * 一条update语句批量更新笔记的点赞数
+     *
+     * @param blogs 笔记,需要id和liked
+     * @return 更新的行数
+     */
+    int updateLikedBatch(@Param("blogs") List<Blog> blogs);
 }
@@ -2,6 +2,9 @@ package com.shop.mapper;
 
 import com.shop.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -12,4 +15,11 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 一条insert ignore语句写入多个订单,主键或唯一索引(user_id, voucher_id)冲突的订单被忽略
+     *
+     * @param orders 订单
+     * @return 实际写入的行数
+     */
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
 }
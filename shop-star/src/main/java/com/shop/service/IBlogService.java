@@ -23,5 +23,7 @@ public interface IBlogService extends IService<Blog> {
 
     Result saveBlog(Blog blog);
 
+    Result updateBlog(Blog blog);
+
     Result queryBlogFollow(Long max, Integer offset);
 }
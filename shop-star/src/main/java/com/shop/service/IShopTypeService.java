@@ -4,6 +4,8 @@ import com.baomidou.mybatisplus.extension.service.IService;
 import com.shop.dto.Result;
 import com.shop.entity.ShopType;
 
+import java.util.List;
+
 /**
  * <p>
  * 服务类
@@ -15,4 +17,11 @@ public interface IShopTypeService extends IService<ShopType> {
 
     Result queryTypeList();
 
+    /**
+     * 按sort排序查询所有店铺类型
+     *
+     * @return 店铺类型列表
+     */
+    List<ShopType> listOrderBySort();
+
 }
@@ -4,6 +4,9 @@ import com.baomidou.mybatisplus.extension.service.IService;
 import com.shop.dto.Result;
 import com.shop.entity.VoucherOrder;
 
+import java.util.List;
+import java.util.Set;
+
 /**
  * <p>
  * 服务类
@@ -15,5 +18,37 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder order);
+    Result createVoucherOrder(VoucherOrder order);
+
+    /**
+     * 批量创建订单:每个优惠券扣减一次库存,一条insert语句写入所有订单,任何一步失败整体回滚
+     *
+     * @param orders 订单
+     * @return 已经存在的订单id(本次写入的和重复投递之前已经写入的),其余订单因为一人一单被忽略
+     */
+    Set<Long> createVoucherOrders(List<VoucherOrder> orders);
+
+    /**
+     * 查询死信队列中最新的消息
+     *
+     * @param count 条数
+     * @return 死信消息,包含原消息的内容、来源队列、投递次数和失败原因
+     */
+    Result queryDeadLetters(Integer count);
+
+    /**
+     * 把死信消息重新投递到订单消息队列,并从死信队列中删除
+     *
+     * @param dlqId 死信消息的id
+     * @return 重新投递后的消息id
+     */
+    Result replayDeadLetter(String dlqId);
+
+    /**
+     * 查询当前用户秒杀订单的处理状态,只读redis
+     *
+     * @param orderId 订单id
+     * @return 订单状态
+     */
+    Result queryOrderStatus(Long orderId);
 }
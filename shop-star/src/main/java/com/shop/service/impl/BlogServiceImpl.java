@@ -2,37 +2,58 @@ package com.shop.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.shop.config.BlogProperties;
 import com.shop.dto.Result;
 import com.shop.dto.ScrollResult;
 import com.shop.dto.UserDTO;
 import com.shop.entity.Blog;
-import com.shop.entity.Follow;
 import com.shop.entity.User;
 import com.shop.mapper.BlogMapper;
 import com.shop.service.IBlogService;
-import com.shop.service.IFollowService;
 import com.shop.service.IUserService;
+import com.shop.utils.BlogHotRanking;
+import com.shop.utils.CacheClient;
+import com.shop.utils.FeedFanoutWorker;
+import com.shop.utils.HotKeyDetector;
 import com.shop.utils.RedisConstants;
 import com.shop.utils.SystemConstants;
 import com.shop.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpServletResponse;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import static com.shop.utils.RedisConstants.BLOG_LIKED_DIRTY_KEY;
 import static com.shop.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.shop.utils.RedisConstants.CACHE_BLOG_KEY;
+import static com.shop.utils.RedisConstants.CACHE_BLOG_TTL;
+import static com.shop.utils.RedisConstants.LOCK_BLOG_HOT_KEY;
+import static com.shop.utils.RedisConstants.LOCK_BLOG_KEY;
 
 /**
  * <p>
@@ -41,6 +62,7 @@ import static com.shop.utils.RedisConstants.BLOG_LIKED_KEY;
  *
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
     @Resource
@@ -56,10 +78,139 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private BlogMapper blogMapper;
 
     @Resource
-    private IFollowService followService;
+    private CacheClient cacheClient;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private BlogHotRanking blogHotRanking;
+
+    @Resource
+    private FeedFanoutWorker feedFanoutWorker;
+
+    @Resource
+    private BlogProperties blogProperties;
+
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> LIKE_TOGGLE_SCRIPT;
+
+    static {
+        LIKE_TOGGLE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_TOGGLE_SCRIPT.setLocation(new ClassPathResource("like_toggle.lua"));
+        LIKE_TOGGLE_SCRIPT.setResultType(List.class);
+    }
 
     @Override
     public Result queryHotBlog(Integer current) {
+        // 从热度排行榜中分页查询笔记id
+        List<Long> ids = blogHotRanking.page(current, SystemConstants.MAX_PAGE_SIZE);
+        if (ids == null) {
+            if (!seedHotRanking()) {
+                // 其他节点正在初始化排行榜
+                return queryHotBlogFromDb(current);
+            }
+            ids = blogHotRanking.page(current, SystemConstants.MAX_PAGE_SIZE);
+        }
+        if (ids == null || ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        // 批量查询笔记缓存,未命中的笔记一次查询数据库
+        List<Blog> cachedBlogs = cacheClient.queryBatch(CACHE_BLOG_KEY, ids, Blog.class,
+                this::listBlogMapByIds, CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        List<Blog> blogs = new ArrayList<>(cachedBlogs.size());
+        for (Blog cached : cachedBlogs) {
+            if (cached != null) {
+                // 缓存中的对象是共享的,复制后再填充用户和点赞信息
+                blogs.add(BeanUtil.copyProperties(cached, Blog.class));
+            }
+        }
+        fillBlogs(blogs);
+        return Result.ok(blogs);
+    }
+
+    /**
+     * 排行榜不存在时用最近发布的笔记初始化
+     *
+     * @return false:其他节点正在初始化
+     */
+    private boolean seedHotRanking() {
+        if (!cacheClient.tryLock(LOCK_BLOG_HOT_KEY)) {
+            return false;
+        }
+        try {
+            if (!blogHotRanking.exists()) {
+                List<Blog> blogs = query()
+                        .select("id", "liked", "create_time")
+                        .orderByDesc("id")
+                        .last("limit " + blogProperties.getHot().getMaxSize())
+                        .list();
+                blogHotRanking.seed(blogs);
+            }
+            return true;
+        } finally {
+            cacheClient.unLock(LOCK_BLOG_HOT_KEY);
+        }
+    }
+
+    /**
+     * 批量填充笔记的作者信息、点赞数和当前用户是否点赞:缓存中已经有作者信息的笔记不再查询用户,
+     * 其余一次查询用户,点赞信息一次pipeline查询
+     *
+     * @param blogs 笔记,不能是缓存中共享的对象
+     */
+    private void fillBlogs(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        fillUsers(blogs.stream().filter(blog -> blog.getName() == null).collect(Collectors.toList()));
+        UserDTO current = UserHolder.getUser();
+        // 每篇笔记依次是 ZCARD、ZSCORE(已登录时)
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Blog blog : blogs) {
+                String key = BLOG_LIKED_KEY + blog.getId();
+                conn.zCard(key);
+                if (current != null) {
+                    conn.zScore(key, current.getId().toString());
+                }
+            }
+            return null;
+        });
+        int step = current == null ? 1 : 2;
+        for (int i = 0; i < blogs.size(); i++) {
+            Blog blog = blogs.get(i);
+            Object count = results.get(i * step);
+            blog.setLiked(count == null ? 0 : Math.toIntExact((Long) count));
+            if (current != null) {
+                blog.setIsLike(results.get(i * step + 1) != null);
+            }
+        }
+    }
+
+    /**
+     * 一次查询填充笔记的作者昵称和头像
+     */
+    private void fillUsers(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).distinct().collect(Collectors.toList());
+        Map<Long, User> users = userService.listByIds(userIds).stream()
+                .collect(Collectors.toMap(User::getId, user -> user));
+        for (Blog blog : blogs) {
+            User user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+    }
+
+    /**
+     * 按数据库中的点赞数分页查询,只在热度排行榜初始化期间使用
+     */
+    private Result queryHotBlogFromDb(Integer current) {
         // 根据用户查询
         Page<Blog> page = query()
                 .orderByDesc("liked")
@@ -82,7 +233,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     }
 
     private Long getLikeCountFromRedis(Long id) {
-        Long likeCount = stringRedisTemplate.opsForZSet().size(BLOG_LIKED_KEY + id);
+        // 热点笔记的点赞数使用短时间的本地副本
+        String key = BLOG_LIKED_KEY + id;
+        Long likeCount = cacheClient.hotRead(key, "count", () -> stringRedisTemplate.opsForZSet().size(key));
         if (likeCount == null) {
             //    没有人点赞
             likeCount = 0L;
@@ -93,25 +246,39 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     /**
      * 定时任务，把点赞数统计到数据库。 每⼀分钟执行一次
+     * <p>
+     * 只同步点赞数有变化的笔记:每批从blog:liked:dirty中弹出一批笔记id,一次pipeline查询点赞数,
+     * 一条update语句写入数据库,写入失败时把笔记id放回集合,下次再同步
      */
     @Scheduled(cron = "0 0/1 * * * ?")
     public void init() {
-        // 获取数据库中所有的订单id
-        QueryWrapper<Blog> queryWrapper = new QueryWrapper<>();
-        queryWrapper.select("id", "liked");
-        List<Blog> blogs = blogMapper.selectList(queryWrapper);
-        for (Blog blog : blogs) {
-            Long id = blog.getId();
-            // 获取当前id在set集合中的点赞数
-            Long likeCount = getLikeCountFromRedis(id);
-            long liked = blog.getLiked();
-            // 缓存的like总数大于等于0并且缓存中的点赞数不等于数据库中的点赞数,才做更新
-            if (likeCount >= 0 && likeCount != liked) {
-                // 更新数据库中的点赞数
-                this.lambdaUpdate()
-                        .set(Blog::getLiked, likeCount)
-                        .eq(Blog::getId, id)
-                        .update();
+        int batchSize = blogProperties.getLike().getFlushBatchSize();
+        while (true) {
+            List<String> ids = stringRedisTemplate.opsForSet().pop(BLOG_LIKED_DIRTY_KEY, batchSize);
+            if (ids == null || ids.isEmpty()) {
+                return;
+            }
+            try {
+                List<Object> counts = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    ids.forEach(id -> conn.zCard(BLOG_LIKED_KEY + id));
+                    return null;
+                });
+                List<Blog> blogs = new ArrayList<>(ids.size());
+                for (int i = 0; i < ids.size(); i++) {
+                    Blog blog = new Blog();
+                    blog.setId(Long.valueOf(ids.get(i)));
+                    blog.setLiked(Math.toIntExact((Long) counts.get(i)));
+                    blogs.add(blog);
+                }
+                blogMapper.updateLikedBatch(blogs);
+            } catch (Exception e) {
+                stringRedisTemplate.opsForSet().add(BLOG_LIKED_DIRTY_KEY, ids.toArray(new String[0]));
+                log.error("同步{}篇笔记的点赞数失败,下次重试", ids.size(), e);
+                return;
+            }
+            if (ids.size() < batchSize) {
+                return;
             }
         }
     }
@@ -128,18 +295,23 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         Long userId = user.getId();
 
-        // 判断当前登录用户是否已经点赞
         String key = BLOG_LIKED_KEY + id;
-        // 如果zset中没有该用户的时间戳,说明没有点赞(没有原子性,存在并发问题,可以使用Lua脚本保证原子性)
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        if (score == null) {
-            // 可以点赞,保存当前时间戳作为分数
-            stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+        hotKeyDetector.record(key);
+        // lua脚本原子的判断是否已经点赞:没有点赞则点赞,保存当前时间戳作为分数;已经点赞则取消点赞
+        List<?> result = stringRedisTemplate.execute(LIKE_TOGGLE_SCRIPT,
+                Arrays.asList(key, BLOG_LIKED_DIRTY_KEY),
+                userId.toString(), String.valueOf(System.currentTimeMillis()), id.toString());
+        // 删除本节点热点笔记的本地副本,其他节点的副本很快过期
+        cacheClient.evictLocal(key);
+        assert result != null;
+        boolean liked = ((Long) result.get(0)) == 1L;
+        long likeTime = (Long) result.get(1);
+        if (liked) {
+            blogHotRanking.onLike(id, likeTime);
             return Result.ok("点赞成功");
         }
-
-        // 已经点赞过了,就取消点赞
-        stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+        // 减去原来点赞时增加的热度
+        blogHotRanking.onUnlike(id, likeTime);
         return Result.ok("取消点赞");
     }
 
@@ -156,7 +328,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
 
         String key = BLOG_LIKED_KEY + id;
-        Set<String> userIds = stringRedisTemplate.opsForZSet().range(key, 0, 4);
+        Set<String> userIds = cacheClient.hotRead(key, "top5", () -> stringRedisTemplate.opsForZSet().range(key, 0, 4));
 
         if (userIds == null || userIds.isEmpty()) {
             return Result.ok(Collections.emptyList());
@@ -192,19 +364,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         // 博客id
         Long blogId = blog.getId();
-        // 查询发布笔记用户的粉丝
-        List<Follow> fans = followService.query().eq("follow_user_id", userId).list();
-        // 开启异步任务
-        CompletableFuture.runAsync(() -> {
-            // 推送笔记id给所有粉丝的收信箱-收信箱的内容为 笔记id-时间戳
-            for (Follow fan : fans) {
-                // 粉丝id
-                Long fansId = fan.getUserId();
-                //    推送
-                String key = RedisConstants.FEED_KEY + fansId;
-                stringRedisTemplate.opsForZSet().add(key, blogId.toString(), System.currentTimeMillis());
-            }
-        });
+        long now = System.currentTimeMillis();
+        blogHotRanking.onPost(blogId, now);
+        // 写入消息队列,由推送线程池分页推送到所有粉丝的收件箱
+        feedFanoutWorker.publish(blogId, userId, now);
 
         // 返回id
         return Result.ok(blogId);
@@ -216,21 +379,28 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         UserDTO user = UserHolder.getUser();
         Long userId = user.getId();
 
-        String key = RedisConstants.FEED_KEY + userId;
-        // 查看当前用户是否有收件箱 exist
-        Boolean hasKey = stringRedisTemplate.hasKey(key);
-        if (Boolean.FALSE.equals(hasKey)) {
-            return Result.ok();
+        // 来源:自己的收件箱 + 关注的大V的发件箱
+        List<String> sources = new ArrayList<>();
+        sources.add(RedisConstants.FEED_KEY + userId);
+        Set<String> bigAuthors = stringRedisTemplate.opsForSet()
+                .intersect(RedisConstants.FOLLOWS_KEY + userId, RedisConstants.FEED_BIG_AUTHORS_KEY);
+        if (bigAuthors != null) {
+            bigAuthors.forEach(authorId -> sources.add(RedisConstants.FEED_OUTBOX_KEY + authorId));
         }
-        // 如果有,按照分数从大到小查询2条 偏移量第一次默认为0
-        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate
-                .opsForZSet().reverseRangeByScoreWithScores(key, 0, max, offset, 2);
-
-        // 再次判断收件箱
-        if (typedTuples == null || typedTuples.isEmpty()) {
+        // 每个来源按照分数从大到小查询前offset+2条,一次pipeline
+        int pageSize = 2;
+        long count = offset + pageSize;
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            sources.forEach(source -> conn.zRevRangeByScoreWithScores(source, 0, max, 0, count));
+            return null;
+        });
+        // 合并后跳过偏移量,第一次默认为0
+        List<ZSetOperations.TypedTuple<String>> typedTuples = mergeFeed(results, offset, pageSize);
+        if (typedTuples.isEmpty()) {
             return Result.ok();
         }
-        // 遍历收件箱,解析数据
+        // 遍历合并结果,解析数据
         ArrayList<Long> ids = new ArrayList<>(typedTuples.size());
         // 最小时间
         long minTime = 0;
@@ -248,16 +418,23 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 os = 1;
             }
         }
+        // 这一页的时间都等于max,说明上一页跳过的同一时间的笔记也要算进偏移量
+        if (minTime == max) {
+            os += offset;
+        }
 
-        String idStr = StrUtil.join(",", ids);
-
-        // 根据笔记id查询笔记
-        List<Blog> blogs = this.query().in("id", ids)
-                .last("order by field(id," + idStr + ")").list();
-        for (Blog blog : blogs) {
-            queryBlogUser(blog);
-            isBlogLiked(blog);
+        // 根据笔记id批量查询笔记缓存(与ids顺序一致),未命中的笔记一次查询数据库
+        List<Blog> cachedBlogs = cacheClient.queryBatch(CACHE_BLOG_KEY, ids, Blog.class,
+                this::listBlogMapByIds, CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        List<Blog> blogs = new ArrayList<>(cachedBlogs.size());
+        for (Blog cached : cachedBlogs) {
+            if (cached == null) {
+                continue;
+            }
+            // 缓存中的对象是共享的,复制后再填充用户和点赞信息
+            blogs.add(BeanUtil.copyProperties(cached, Blog.class));
         }
+        fillBlogs(blogs);
         // 最小时间戳,offset 封装返回前端
         ScrollResult scrollResult = new ScrollResult();
         scrollResult.setList(blogs);
@@ -267,21 +444,114 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(scrollResult);
     }
 
+    /**
+     * 多路归并收件箱和发件箱的查询结果:按分数从大到小,分数相同按id从大到小(与redis的倒序一致),
+     * 同一篇笔记只保留一次,跳过offset条后取pageSize条
+     *
+     * @param results  每个来源的查询结果,各自已经有序
+     * @param offset   跳过的条数
+     * @param pageSize 每页条数
+     * @return 这一页的笔记id和时间
+     */
+    @SuppressWarnings("unchecked")
+    static List<ZSetOperations.TypedTuple<String>> mergeFeed(List<Object> results, int offset, int pageSize) {
+        Comparator<ZSetOperations.TypedTuple<String>> order = Comparator
+                .comparing(ZSetOperations.TypedTuple<String>::getScore, Comparator.reverseOrder())
+                .thenComparing(ZSetOperations.TypedTuple<String>::getValue, Comparator.reverseOrder());
+        // 堆中是每个来源的当前元素及其迭代器
+        PriorityQueue<Map.Entry<ZSetOperations.TypedTuple<String>, Iterator<ZSetOperations.TypedTuple<String>>>> heap =
+                new PriorityQueue<>(Math.max(results.size(), 1), (o1, o2) -> order.compare(o1.getKey(), o2.getKey()));
+        for (Object result : results) {
+            Iterator<ZSetOperations.TypedTuple<String>> it =
+                    ((Set<ZSetOperations.TypedTuple<String>>) result).iterator();
+            if (it.hasNext()) {
+                heap.offer(new AbstractMap.SimpleEntry<>(it.next(), it));
+            }
+        }
+        List<ZSetOperations.TypedTuple<String>> page = new ArrayList<>(pageSize);
+        Set<String> seen = new HashSet<>();
+        int skipped = 0;
+        while (!heap.isEmpty() && page.size() < pageSize) {
+            Map.Entry<ZSetOperations.TypedTuple<String>, Iterator<ZSetOperations.TypedTuple<String>>> head = heap.poll();
+            ZSetOperations.TypedTuple<String> tuple = head.getKey();
+            Iterator<ZSetOperations.TypedTuple<String>> it = head.getValue();
+            if (it.hasNext()) {
+                heap.offer(new AbstractMap.SimpleEntry<>(it.next(), it));
+            }
+            if (!seen.add(tuple.getValue())) {
+                continue;
+            }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            page.add(tuple);
+        }
+        return page;
+    }
+
+    /**
+     * 批量加载笔记缓存,与笔记详情的缓存一样带上作者信息
+     */
+    private Map<Long, Blog> listBlogMapByIds(Collection<Long> ids) {
+        List<Blog> blogs = this.listByIds(ids);
+        fillUsers(blogs);
+        return blogs.stream().collect(Collectors.toMap(Blog::getId, blog -> blog));
+    }
+
+    /**
+     * 加载笔记详情缓存,带上作者信息,点赞信息每次实时查询
+     */
+    private Blog loadBlog(Long id) {
+        Blog blog = this.getById(id);
+        if (blog != null) {
+            fillUsers(Collections.singletonList(blog));
+        }
+        return blog;
+    }
+
     @Override
     public Result queryBlogById(Long id) {
-        Blog blog = this.getById(id);
-        if (blog == null) {
+        // 笔记和作者信息走缓存,不存在的笔记缓存空值防止穿透
+        Blog cached = cacheClient.queryWithMutex(CACHE_BLOG_KEY, id, Blog.class, LOCK_BLOG_KEY,
+                this::loadBlog, CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        if (cached == null) {
             return Result.fail("笔记不存在");
         }
-        // 从缓存中获取最新的点赞信息
-        Long likedCount = this.getLikeCountFromRedis(id);
-        blog.setLiked(Math.toIntExact(likedCount));
-        this.queryBlogUser(blog);
-        this.isBlogLiked(blog);
+        // 缓存中的对象是共享的,复制后再一次pipeline填充最新的点赞数和当前用户是否点赞
+        Blog blog = BeanUtil.copyProperties(cached, Blog.class);
+        fillBlogs(Collections.singletonList(blog));
 
         return Result.ok(blog);
     }
 
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public Result updateBlog(Blog blog) {
+        if (blog == null || blog.getId() == null) {
+            return Result.fail("笔记id不能为空");
+        }
+        Blog old = this.getById(blog.getId());
+        if (old == null) {
+            return Result.fail("笔记不存在");
+        }
+        UserDTO user = UserHolder.getUser();
+        if (user == null || !old.getUserId().equals(user.getId())) {
+            return Result.fail("只能修改自己的笔记");
+        }
+        // 只更新笔记内容,作者和点赞数等不允许修改
+        Blog update = new Blog();
+        update.setId(blog.getId());
+        update.setShopId(blog.getShopId());
+        update.setTitle(blog.getTitle());
+        update.setImages(blog.getImages());
+        update.setContent(blog.getContent());
+        this.updateById(update);
+        // 事务提交后删除redis缓存,并通知所有节点删除本地缓存
+        cacheClient.invalidateAfterCommit(CACHE_BLOG_KEY + blog.getId());
+        return Result.ok();
+    }
+
     /**
      * 判断当前用户是否点过赞了
      *
@@ -294,6 +564,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (user == null) {
             return;
         }
+        hotKeyDetector.record(key);
         Long userId = user.getId();
         Double score = stringRedisTemplate.opsForZSet()
                 .score(key, userId.toString());
@@ -8,6 +8,7 @@ import com.shop.entity.Follow;
 import com.shop.mapper.FollowMapper;
 import com.shop.service.IFollowService;
 import com.shop.service.IUserService;
+import com.shop.utils.RedisConstants;
 import com.shop.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
@@ -41,7 +42,7 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         }
         Long userId = user.getId();
 
-        String key = "follows:" + userId;
+        String key = RedisConstants.FOLLOWS_KEY + userId;
         if (isFollow) {
             //    关注
             Follow follow = new Follow();
@@ -79,9 +80,9 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
     public Result followCommons(Long id) {
         Long userId = UserHolder.getUser().getId();
         // 当前用户
-        String key = "follows:" + userId;
+        String key = RedisConstants.FOLLOWS_KEY + userId;
         // 目标用户
-        String key2 = "follows:" + id;
+        String key2 = RedisConstants.FOLLOWS_KEY + id;
         // 从redis中的set集合求交集
         Set<String> intersect = stringRedisTemplate.opsForSet().intersect(key, key2);
         if (intersect == null || intersect.isEmpty()) {
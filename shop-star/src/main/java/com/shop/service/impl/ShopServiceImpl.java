@@ -1,8 +1,8 @@
 package com.shop.service.impl;
 
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
+import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.shop.dto.Result;
@@ -10,8 +10,9 @@ import com.shop.entity.Shop;
 import com.shop.mapper.ShopMapper;
 import com.shop.service.IShopService;
 import com.shop.utils.CacheClient;
+import com.shop.utils.CacheWarmer;
+import com.shop.utils.RedisBloomFilter;
 import com.shop.utils.RedisConstants;
-import com.shop.utils.RedisData;
 import com.shop.utils.SystemConstants;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
@@ -24,8 +25,8 @@ import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
@@ -48,6 +49,29 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private CacheWarmer cacheWarmer;
+
+    /**
+     * 启动时根据数据库中所有店铺id重建布隆过滤器,拦截不存在的店铺id
+     */
+    @PostConstruct
+    private void initBloomFilter() {
+        RedisBloomFilter bloomFilter = cacheClient.registerBloomFilter(CACHE_SHOP_KEY);
+        List<Object> ids = this.listObjs(new QueryWrapper<Shop>().select("id"));
+        bloomFilter.rebuild(ids);
+    }
+
+    @Override
+    public boolean save(Shop shop) {
+        boolean isSuccess = super.save(shop);
+        if (isSuccess) {
+            // 新增的店铺加入布隆过滤器
+            cacheClient.addToBloomFilter(CACHE_SHOP_KEY, shop.getId());
+        }
+        return isSuccess;
+    }
+
     /**
      * 使用缓存空值解决缓存穿透(某个数据redis缓存中不存在,数据库中也不存在,访问该数据会一直请求数据库)
      * 使用N+n解决缓存雪崩(同一时间大量的key同时过期)
@@ -70,11 +94,17 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // Shop shop = cacheClient
         //         .queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, LOCK_SHOP_KEY,
         //                 this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        // 概率提前刷新解决缓存击穿(缓存格式与批量查询不同,切换时需要同时调整queryShopByType)
+        // Shop shop = cacheClient
+        //         .queryWithEarlyRefresh(CACHE_SHOP_KEY, id, Shop.class, LOCK_SHOP_KEY,
+        //                 this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
 
         if (shop == null) {
             return Result.fail("商铺不存在");
         }
+        // 记录存在的店铺的访问次数,用于启动时预热
+        cacheWarmer.recordShopHit(id);
 
         return Result.ok(shop);
     }
@@ -89,11 +119,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      */
     public void saveShop2Redis(Long id, Long expireSeconds) {
         Shop shop = getById(id);
-        RedisData<Shop> redisData = new RedisData<>();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 
     @Override
@@ -107,8 +133,10 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             return Result.fail("商铺id不能为空");
         }
         this.updateById(shop);
+        cacheClient.addToBloomFilter(CACHE_SHOP_KEY, id);
         String key = RedisConstants.CACHE_SHOP_KEY + id;
-        stringRedisTemplate.delete(key);
+        // 事务提交后删除redis缓存,并通知所有节点删除本地缓存
+        cacheClient.invalidateAfterCommit(key);
         return Result.ok();
     }
 
@@ -155,19 +183,27 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
             distanceMap.put(shopId, distance);
         });
-        // 根据id查询店铺（注意有序）
-        String idListStr = StrUtil.join(",", idList);
-        LambdaQueryWrapper<Shop> queryWrapper = new LambdaQueryWrapper<>();
-        queryWrapper.in(Shop::getId, idList).last("ORDER BY FIELD(id," + idListStr + ")");
-        List<Shop> shopList = this.list(queryWrapper);
-        // 店铺与距离相映射
-        shopList.forEach(shop -> {
+        // 根据id批量查询店铺缓存(与idList顺序一致),未命中的店铺一次查询数据库
+        List<Shop> cachedShops = cacheClient.queryBatch(CACHE_SHOP_KEY, idList, Shop.class,
+                this::listShopMapByIds, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        List<Shop> shopList = new ArrayList<>(cachedShops.size());
+        // 店铺与距离相映射,缓存中的对象是共享的,复制后再设置距离
+        for (Shop cached : cachedShops) {
+            if (cached == null) {
+                continue;
+            }
+            Shop shop = BeanUtil.copyProperties(cached, Shop.class);
             Distance distance = distanceMap.get(shop.getId().toString());
             shop.setDistance(distance.getValue());
-        });
+            shopList.add(shop);
+        }
         return Result.ok(shopList);
     }
 
+    private Map<Long, Shop> listShopMapByIds(Collection<Long> ids) {
+        return this.listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, shop -> shop));
+    }
+
     /**
      * 定时任务： 把店铺的地理位置写⼊Redis，每⼀分钟执⾏⼀次
      */
@@ -1,15 +1,12 @@
 package com.shop.service.impl;
 
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.shop.dto.Result;
 import com.shop.entity.ShopType;
 import com.shop.mapper.ShopTypeMapper;
 import com.shop.service.IShopTypeService;
+import com.shop.utils.CacheClient;
 import com.shop.utils.RedisConstants;
-import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.ValueOperations;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
@@ -26,27 +23,21 @@ import java.util.List;
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private CacheClient cacheClient;
 
     @Override
     public Result queryTypeList() {
-        ValueOperations<String, String> stringStringValueOperations = stringRedisTemplate.opsForValue();
-        String cacheShopTypeKey = RedisConstants.CACHE_SHOP_TYPE_KEY;
-        String shopTypeJson = stringStringValueOperations.get(cacheShopTypeKey);
-        if (StrUtil.isNotBlank(shopTypeJson)) {
-            List<ShopType> shopTypes = JSONUtil.toList(shopTypeJson, ShopType.class);
-            return Result.ok(shopTypes);
-        }
-
-        List<ShopType> typeList = this
-                .query().orderByAsc("sort").list();
+        // 互斥锁重建缓存,避免缓存失效时并发查询数据库
+        List<ShopType> typeList = cacheClient.queryListWithMutex(RedisConstants.CACHE_SHOP_TYPE_KEY, ShopType.class,
+                RedisConstants.LOCK_SHOP_TYPE_KEY, this::listOrderBySort);
         if (typeList.isEmpty()) {
             return Result.fail("店铺类型列表为空");
         }
-        String typeListJson = JSONUtil.toJsonStr(typeList);
-        stringStringValueOperations
-                .set(cacheShopTypeKey, typeListJson);
-
         return Result.ok(typeList);
     }
+
+    @Override
+    public List<ShopType> listOrderBySort() {
+        return this.query().orderByAsc("sort").list();
+    }
 }
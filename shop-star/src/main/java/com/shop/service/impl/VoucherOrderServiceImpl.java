@@ -1,36 +1,60 @@
 package com.shop.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
-import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.shop.config.SeckillProperties;
+import com.shop.dto.OrderStatusDTO;
 import com.shop.dto.Result;
 import com.shop.entity.VoucherOrder;
 import com.shop.mapper.VoucherOrderMapper;
 import com.shop.service.ISeckillVoucherService;
 import com.shop.service.IVoucherOrderService;
+import com.shop.utils.OrderStatusRecorder;
 import com.shop.utils.RedisIdWorker;
+import com.shop.utils.SeckillKeys;
+import com.shop.utils.SeckillVoucherRegistry;
+import com.shop.utils.StreamConsumerSupport;
 import com.shop.utils.UserHolder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.StreamOperations;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.Duration;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.shop.utils.RedisConstants.SECKILL_DLQ_KEY;
 
 /**
  * <p>
@@ -55,8 +79,27 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     // @Resource
     // private IVoucherOrderService voucherOrderService;
 
+    /**
+     * 当前类的代理对象,避免事务失效。延迟注入解决自身的循环依赖
+     */
+    @Lazy
+    @Resource
+    private IVoucherOrderService proxy;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private SeckillVoucherRegistry seckillVoucherRegistry;
+
     @Resource
-    private RedissonClient redissonClient;
+    private OrderStatusRecorder orderStatusRecorder;
+
+    @Resource
+    private StreamConsumerSupport streamConsumerSupport;
 
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
 
@@ -66,108 +109,352 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setResultType(Long.class);
     }
 
+    /**
+     * 分片模式下用户home分片的下单脚本
+     */
+    private static final DefaultRedisScript<Long> SECKILL_PARTITION_SCRIPT;
+
+    static {
+        SECKILL_PARTITION_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_PARTITION_SCRIPT.setLocation(new ClassPathResource("seckill_partition.lua"));
+        SECKILL_PARTITION_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 分片模式下到其他分片扣减库存的脚本
+     */
+    private static final DefaultRedisScript<Long> SECKILL_STOCK_SCRIPT;
+
+    static {
+        SECKILL_STOCK_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_STOCK_SCRIPT.setLocation(new ClassPathResource("seckill_stock.lua"));
+        SECKILL_STOCK_SCRIPT.setResultType(Long.class);
+    }
+
+
+    private static final String GROUP_NAME = "g1";
+
+    /**
+     * 订单消息队列,不分片时只有stream.orders,分片时每个分片一个
+     */
+    private List<String> streamKeys;
+
+    /**
+     * 消费者线程数,至少每个消息队列一个线程
+     */
+    private int workerCount;
+
+    private ExecutorService orderExecutor;
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    private volatile boolean running = true;
+
+    /**
+     * 本节点消费者名称的前缀,由主机名和进程号组成,每个线程再加上序号
+     */
+    private String consumerPrefix;
+
+    private final AtomicLong pendingCount = new AtomicLong();
+
+    private final AtomicLong lagMillis = new AtomicLong();
+
+    private Counter deadLetterCounter;
 
     /**
      * 依赖注入后执行
      */
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        streamKeys = SeckillKeys.streamKeys(seckillProperties.getPartitions());
+        streamKeys.forEach(streamKey -> streamConsumerSupport.createGroupIfAbsent(streamKey, GROUP_NAME));
+        consumerPrefix = StreamConsumerSupport.consumerPrefix();
+        workerCount = Math.max(seckillProperties.getConsumer().getWorkers(), streamKeys.size());
+        AtomicInteger threadIndex = new AtomicInteger();
+        orderExecutor = Executors.newFixedThreadPool(workerCount,
+                r -> new Thread(r, "seckill-order-" + threadIndex.incrementAndGet()));
+        // 第i个线程消费第 i % 队列数 个消息队列
+        for (int i = 0; i < workerCount; i++) {
+            orderExecutor.submit(new VoucherOrderHandler(consumerPrefix + "-" + i, streamOf(i)));
+        }
+
+        Gauge.builder("seckill.stream.pending", pendingCount, AtomicLong::get)
+                .description("已投递未确认的订单消息数")
+                .register(meterRegistry);
+        Gauge.builder("seckill.stream.lag", lagMillis, AtomicLong::get)
+                .description("最新消息与最近投递的消息之间的时间差(毫秒)")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+        deadLetterCounter = Counter.builder("seckill.stream.dead-letter")
+                .description("超过最大投递次数被移入死信队列的订单消息数")
+                .register(meterRegistry);
+    }
+
+    private String streamOf(int worker) {
+        return streamKeys.get(worker % streamKeys.size());
+    }
+
+    /**
+     * 关闭时停止读取新消息,等待正在处理的消息完成并确认
+     */
+    @PreDestroy
+    private void shutdown() {
+        running = false;
+        orderExecutor.shutdown();
+        long shutdownSeconds = seckillProperties.getConsumer().getShutdownSeconds();
+        try {
+            if (!orderExecutor.awaitTermination(shutdownSeconds, TimeUnit.SECONDS)) {
+                log.warn("订单消费者在{}秒内没有停止,未确认的消息将由其他节点认领", shutdownSeconds);
+                orderExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            orderExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+            return;
+        }
+        // 删除没有未确认消息的消费者,避免重启后消费者组中残留大量消费者
+        for (int i = 0; i < workerCount; i++) {
+            streamConsumerSupport.removeConsumerIfIdle(streamOf(i), GROUP_NAME, consumerPrefix + "-" + i);
+        }
     }
 
+    /**
+     * 认领长时间没有确认的消息(消费者宕机或处理卡住),由本节点重新处理
+     */
+    @Scheduled(fixedDelayString = "${shop.seckill.consumer.claim-idle-millis:60000}", initialDelay = 10000)
+    public void claimIdlePending() {
+        for (String streamKey : streamKeys) {
+            try {
+                claimIdlePending(streamKey);
+            } catch (Exception e) {
+                log.error("认领消息队列{}的超时消息异常", streamKey, e);
+            }
+        }
+    }
+
+    private void claimIdlePending(String streamKey) {
+        List<MapRecord<String, Object, Object>> claimed = streamConsumerSupport.claimIdle(streamKey, GROUP_NAME,
+                consumerPrefix + "-claimer", seckillProperties.getConsumer().getClaimIdleMillis());
+        if (!claimed.isEmpty()) {
+            handleMessages(streamKey, claimed);
+        }
+    }
+
+    /**
+     * 定时采集消息队列的积压指标,分片时未确认消息数取所有队列之和,延迟取所有队列的最大值
+     */
+    @Scheduled(fixedDelay = 5000, initialDelay = 5000)
+    public void collectStreamMetrics() {
+        long[] backlog = streamConsumerSupport.backlog(streamKeys, GROUP_NAME);
+        pendingCount.set(backlog[0]);
+        lagMillis.set(backlog[1]);
+    }
+
+    /**
+     * 批量创建订单并一次确认所有消息,批量创建失败时逐条处理
+     *
+     * @return false:有消息处理失败,留在pending-list中
+     */
+    private boolean handleMessages(String streamKey, List<MapRecord<String, Object, Object>> messages) {
+        List<VoucherOrder> orders = new ArrayList<>(messages.size());
+        for (MapRecord<String, Object, Object> message : messages) {
+            orders.add(parseOrder(message));
+        }
+        Set<Long> persisted;
+        try {
+            persisted = proxy.createVoucherOrders(orders);
+        } catch (Exception e) {
+            log.warn("批量创建{}个订单失败,逐条处理", orders.size(), e);
+            boolean allHandled = true;
+            for (MapRecord<String, Object, Object> message : messages) {
+                try {
+                    handleMessage(streamKey, message);
+                } catch (Exception ex) {
+                    // 不确认,留在pending-list中重新处理,超过最大投递次数时移入死信队列
+                    log.error("处理订单消息异常,id:{}", message.getId(), ex);
+                    allHandled &= deadLetterIfExhausted(streamKey, message, ex);
+                }
+            }
+            return allHandled;
+        }
+        //    ACK 确认 XACK stream.orders g1 id1 id2 ...
+        RecordId[] ids = messages.stream().map(MapRecord::getId).toArray(RecordId[]::new);
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, GROUP_NAME, ids);
+        try {
+            // 被一人一单忽略的订单不存在,不能记录为创建成功
+            Map<Boolean, List<VoucherOrder>> created = orders.stream()
+                    .collect(Collectors.partitioningBy(order -> persisted.contains(order.getId())));
+            orderStatusRecorder.created(created.get(true));
+            created.get(false).forEach(order -> orderStatusRecorder.failed(order, "不能重复下单"));
+        } catch (Exception e) {
+            // 订单已经创建,状态只用于客户端查询,不影响消息确认
+            log.warn("记录{}个订单的状态失败", orders.size(), e);
+        }
+        return true;
+    }
+
+    /**
+     * 消息的投递次数达到上限时,连同失败原因写入死信队列并确认原消息
+     *
+     * @return true:已移入死信队列
+     */
+    private boolean deadLetterIfExhausted(String streamKey, MapRecord<String, Object, Object> message, Exception e) {
+        if (!streamConsumerSupport.deadLetterIfExhausted(streamKey, GROUP_NAME, message,
+                seckillProperties.getConsumer().getMaxDeliveries(), SECKILL_DLQ_KEY, e)) {
+            return false;
+        }
+        deadLetterCounter.increment();
+        try {
+            orderStatusRecorder.failed(parseOrder(message), "订单处理失败");
+        } catch (Exception ex) {
+            log.warn("记录订单消息{}的状态失败", message.getId(), ex);
+        }
+        return true;
+    }
+
+    @Override
+    public Result queryDeadLetters(Integer count) {
+        // XREVRANGE stream.orders.dlq + - COUNT count
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().reverseRange(
+                SECKILL_DLQ_KEY, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        List<Map<Object, Object>> deadLetters = new ArrayList<>();
+        if (records != null) {
+            for (MapRecord<String, Object, Object> record : records) {
+                Map<Object, Object> deadLetter = new LinkedHashMap<>();
+                deadLetter.put("dlqId", record.getId().getValue());
+                deadLetter.putAll(record.getValue());
+                deadLetters.add(deadLetter);
+            }
+        }
+        return Result.ok(deadLetters);
+    }
+
+    @Override
+    public Result replayDeadLetter(String dlqId) {
+        StreamOperations<String, Object, Object> ops = stringRedisTemplate.opsForStream();
+        List<MapRecord<String, Object, Object>> records = ops.range(SECKILL_DLQ_KEY, Range.closed(dlqId, dlqId));
+        if (records == null || records.isEmpty()) {
+            return Result.fail("死信消息不存在");
+        }
+        Map<Object, Object> fields = records.get(0).getValue();
+        // 分片数调整后原来的消息队列可能已经没有消费者,投递到第一个消息队列
+        String streamKey = String.valueOf(fields.get("stream"));
+        if (!streamKeys.contains(streamKey)) {
+            streamKey = streamKeys.get(0);
+        }
+        Map<String, String> order = new HashMap<>();
+        order.put("userId", String.valueOf(fields.get("userId")));
+        order.put("voucherId", String.valueOf(fields.get("voucherId")));
+        order.put("id", String.valueOf(fields.get("id")));
+        RecordId recordId = ops.add(StreamRecords.string(order).withStreamKey(streamKey));
+        ops.delete(SECKILL_DLQ_KEY, dlqId);
+        log.info("死信消息{}重新投递到{},id:{}", dlqId, streamKey, recordId);
+        return Result.ok(recordId == null ? null : recordId.getValue());
+    }
+
+    /**
+     * 解析订单消息,创建订单并确认
+     */
+    private void handleMessage(String streamKey, MapRecord<String, Object, Object> message) {
+        // 创建订单
+        VoucherOrder order = parseOrder(message);
+        Result result = handlerVoucherOrder(order);
+        //    ACK 确认 SACK stream.orders g1 id
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, GROUP_NAME, message.getId());
+        try {
+            if (Boolean.TRUE.equals(result.getSuccess())) {
+                orderStatusRecorder.created(Collections.singletonList(order));
+            } else {
+                orderStatusRecorder.failed(order, result.getErrorMsg());
+            }
+        } catch (Exception e) {
+            log.warn("记录订单{}的状态失败", order.getId(), e);
+        }
+    }
+
+    private static VoucherOrder parseOrder(MapRecord<String, Object, Object> message) {
+        Map<Object, Object> orderMap = message.getValue();
+        VoucherOrder voucherOrder = new VoucherOrder();
+        BeanUtil.fillBeanWithMap(orderMap, voucherOrder, true);
+        return voucherOrder;
+    }
 
     /**
      * 获取消息队列中的信息
      */
     private class VoucherOrderHandler implements Runnable {
-        String queueName = "stream.orders";
+        private final String consumerName;
+
+        private final String streamKey;
+
+        private VoucherOrderHandler(String consumerName, String streamKey) {
+            this.consumerName = consumerName;
+            this.streamKey = streamKey;
+        }
 
         @Override
         public void run() {
-            if (Boolean.FALSE.equals(stringRedisTemplate.hasKey(queueName))) {
-                log.info("redis中没有该stream队列,准备创建");
-                stringRedisTemplate.opsForStream().createGroup(queueName, "g1");
-                log.info("创建stream消息队列成功");
-            }
-            while (true) {
+            SeckillProperties.Consumer consumer = seckillProperties.getConsumer();
+            // 先处理本消费者上次没有确认的消息
+            handlerPendingList();
+            while (running) {
                 try {
-                    // log.info("c1消费者准备获取从g1组中获取消息");
-                    //    获取stream消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.order >
-
+                    //    获取stream消息队列中的订单信息 XREADGROUP GROUP g1 consumer COUNT n BLOCK 2000 STREAMS stream.order >
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate
                             .opsForStream()
                             .read(
-                                    Consumer.from("g1", "c1"),
-                                    StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                                    StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                                    Consumer.from(GROUP_NAME, consumerName),
+                                    StreamReadOptions.empty()
+                                            .count(consumer.getBatchSize())
+                                            .block(Duration.ofMillis(consumer.getBlockMillis())),
+                                    StreamOffset.create(streamKey, ReadOffset.lastConsumed())
                             );
 
                     // 判断消息是否获取成功
                     if (list == null || list.isEmpty()) {
                         // 如果获取失败说明没有消息,继续下一次获取
-                        // log.info("c1消费者从g1组中 没有获取到 消息");
                         continue;
                     }
-                    log.info("c1消费者从g1组中 获取到 消息!!! 准备解析该消息");
-                    // 解析消息中的订单信息
-                    MapRecord<String, Object, Object> message = list.get(0);
-                    Map<Object, Object> orderMap = message.getValue();
-                    VoucherOrder voucherOrder = new VoucherOrder();
-                    BeanUtil.fillBeanWithMap(orderMap, voucherOrder, true);
-                    log.info("解析消息成功,消息内容:{}", voucherOrder);
-                    // 如果获取成功则 创建订单
-                    handlerVoucherOrder(voucherOrder);
-                    //    ACK 确认 SACK stream.orders g1 id
-                    log.info("处理成功准备发送ack确认标识");
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", message.getId());
-
+                    handleMessages(streamKey, list);
                 } catch (Exception e) {
-                    log.error("处理订单异常", e);
+                    log.error("{}处理订单异常", consumerName, e);
                     //    取出没有确认的消息,再次处理
                     handlerPendingList();
                 }
             }
+            log.info("订单消费者{}已停止", consumerName);
         }
 
         private void handlerPendingList() {
-            while (true) {
+            while (running) {
                 try {
-                    //    获取stream消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 STREAMS stream.order 0
-                    log.warn("c1消费者从g1组中 获取 未经确认的消息");
+                    //    获取stream消息队列中的订单信息 XREADGROUP GROUP g1 consumer COUNT n STREAMS stream.order 0
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate
                             .opsForStream()
                             .read(
-                                    Consumer.from("g1", "c1"),
-                                    StreamReadOptions.empty().count(1),
-                                    StreamOffset.create(queueName, ReadOffset.from("0"))
+                                    Consumer.from(GROUP_NAME, consumerName),
+                                    StreamReadOptions.empty().count(seckillProperties.getConsumer().getBatchSize()),
+                                    StreamOffset.create(streamKey, ReadOffset.from("0"))
                             );
 
                     // 判断消息是否获取成功
                     if (list == null || list.isEmpty()) {
                         // 如果获取失败说明pendingList中没有没有被消费确认的消息,结束循环
-                        log.warn("c1消费者从g1组中 获取 未经确认的消息 为空 所有消息都被确认");
                         break;
                     }
-                    // 解析消息中的订单信息
-                    MapRecord<String, Object, Object> message = list.get(0);
-                    Map<Object, Object> orderMap = message.getValue();
-                    VoucherOrder voucherOrder = new VoucherOrder();
-                    BeanUtil.fillBeanWithMap(orderMap, voucherOrder, true);
-                    log.warn("c1消费者从g1组中 获取 未经确认的消息 解析后为{}", voucherOrder);
-                    // 如果获取成功则 创建订单
-                    handlerVoucherOrder(voucherOrder);
-                    log.info("处理成功准备发送ack确认标识");
-                    //    ACK 确认 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", message.getId());
-
+                    log.warn("{}获取到{}条未经确认的消息", consumerName, list.size());
+                    if (!handleMessages(streamKey, list)) {
+                        // 有消息处理失败,等待一段时间再重新读取,每次读取都会增加消息的投递次数
+                        Thread.sleep(seckillProperties.getConsumer().getRetryBackoffMillis());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 } catch (Exception e) {
-                    log.error("处理pending-list订单异常,准备再次获取pending-list消息", e);
+                    log.error("{}处理pending-list订单异常,准备再次获取pending-list消息", consumerName, e);
                     try {
                         Thread.sleep(20);
                     } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
+                        Thread.currentThread().interrupt();
+                        return;
                     }
                 }
             }
@@ -195,68 +482,129 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
     }*/
 
-    private void handlerVoucherOrder(VoucherOrder order) {
-        Long userId = order.getUserId();
-        RLock rLock = redissonClient.getLock("lock:order:" + userId);
-        // 获取默认的锁,不等待,超时时间30秒
-        boolean isLock = rLock.tryLock();
-        if (!isLock) {
-            log.error("不允许重复下单");
-            return;
-        }
-        try {
-            // 使用AopContext获取当前对象的代理对象,避免事务失效
-            proxy.createVoucherOrder(order);
-            // return voucherOrderService.createVoucherOrder(voucherId);
-            // }
-        } finally {
-            // 释放锁
-            // lock.unlock();
-            rLock.unlock();
-        }
+    private Result handlerVoucherOrder(VoucherOrder order) {
+        // 一人一单由lua脚本和数据库的唯一索引(user_id, voucher_id)保证,不需要再加锁
+        // 使用当前对象的代理对象,避免事务失效
+        return proxy.createVoucherOrder(order);
     }
 
-    private IVoucherOrderService proxy;
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        // 只读redis,查询不到时不回查数据库
+        OrderStatusDTO status = orderStatusRecorder.query(orderId, UserHolder.getUser().getId());
+        if (status == null) {
+            return Result.fail("订单不存在");
+        }
+        return Result.ok(status);
+    }
 
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 本地已标记售罄或失效的优惠券,不再访问redis
+        SeckillVoucherRegistry.Status status = seckillVoucherRegistry.statusOf(voucherId);
+        if (status == SeckillVoucherRegistry.Status.SOLD_OUT) {
+            return Result.fail("库存不足");
+        }
+        if (status == SeckillVoucherRegistry.Status.EXPIRED) {
+            return Result.fail("优惠券已失效");
+        }
+        // 秒杀时间段,本地没有时查询数据库,不存在的优惠券不会执行脚本
+        status = seckillVoucherRegistry.windowStatus(voucherId, LocalDateTime.now());
+        if (status == SeckillVoucherRegistry.Status.NOT_FOUND) {
+            return Result.fail("优惠券不存在");
+        }
+        if (status == SeckillVoucherRegistry.Status.NOT_STARTED) {
+            return Result.fail("秒杀未开始");
+        }
+        if (status == SeckillVoucherRegistry.Status.ENDED) {
+            return Result.fail("秒杀已结束");
+        }
         //    执行Lua脚本
         Long userId = UserHolder.getUser().getId();
         long orderId = redisIdWorker.createId("order");
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
-        );
+        int partitions = seckillProperties.getPartitions();
+        Long result;
+        if (partitions > 0) {
+            result = seckillPartitioned(voucherId, userId, orderId, partitions);
+        } else {
+            result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Arrays.asList(SeckillKeys.stockKey(voucherId), SeckillKeys.orderKey(voucherId),
+                            SeckillKeys.streamKey()),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId)
+            );
+        }
         assert result != null;
         int r = result.intValue();
         //    判断结果是否是0
         if (r != 0) {
-            // 减掉生成id造成的缓存中的销量增加
-            String date = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-            stringRedisTemplate.opsForValue().decrement("icr:" +
-                    "order" + ":" + date);
+            // 订单id的序列号只要求唯一,不再回退计数器
             //    不为0 没有购买资格
             String message = null;
             if (r == 1) {
                 message = "库存不足";
+                seckillVoucherRegistry.markSoldOut(voucherId);
             }
             if (r == 2) {
                 message = "不能重复下单";
             }
             if (r == 3) {
                 message = "优惠券已失效";
+                seckillVoucherRegistry.markExpired(voucherId);
             }
             return Result.fail(message);
         }
 
-        // 获取当前类的代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-
         //    返回订单id
         return Result.ok(orderId);
     }
 
+    /**
+     * 分片秒杀:先在用户的home分片上判断一人一单并扣减库存,
+     * home分片库存不足时从随机的一个分片开始依次尝试其他分片,全部不足时释放home分片上占用的下单资格
+     *
+     * @return 与seckill.lua相同的结果
+     */
+    private Long seckillPartitioned(Long voucherId, Long userId, long orderId, int partitions) {
+        int home = SeckillKeys.shardOf(userId, partitions);
+        String orderKey = SeckillKeys.orderKey(voucherId, home);
+        Object[] args = {voucherId.toString(), userId.toString(), String.valueOf(orderId)};
+        Long result = stringRedisTemplate.execute(
+                SECKILL_PARTITION_SCRIPT,
+                Arrays.asList(SeckillKeys.stockKey(voucherId, home), orderKey, SeckillKeys.streamKey(home)),
+                args
+        );
+        if (result == null || result != 4) {
+            return result;
+        }
+        int start = ThreadLocalRandom.current().nextInt(partitions);
+        boolean ordered = false;
+        try {
+            for (int i = 0; i < partitions; i++) {
+                int shard = (start + i) % partitions;
+                if (shard == home) {
+                    continue;
+                }
+                Long r = stringRedisTemplate.execute(
+                        SECKILL_STOCK_SCRIPT,
+                        Arrays.asList(SeckillKeys.stockKey(voucherId, shard), SeckillKeys.streamKey(shard)),
+                        args
+                );
+                if (r != null && r == 0) {
+                    ordered = true;
+                    return 0L;
+                }
+            }
+            return 1L;
+        } finally {
+            // 没有在任何分片下单成功(包括访问其他分片异常)时释放home分片上占用的下单资格,
+            // 否则用户在整个秒杀期间都会被判断为重复下单
+            if (!ordered) {
+                stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+            }
+        }
+    }
+
     // 阻塞队列实现异步秒杀
     /*@Override
     public Result seckillVoucher(Long voucherId) {
@@ -348,32 +696,65 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @Override
     @Transactional
-    public void createVoucherOrder(VoucherOrder order) {
-        //⼀⼈⼀单
-        Long userId = order.getUserId();
-        Long voucherId = order.getVoucherId();
-        LambdaQueryWrapper<VoucherOrder> queryWrapper = new LambdaQueryWrapper<>();
-        queryWrapper.eq(VoucherOrder::getUserId, userId)
-                .eq(VoucherOrder::getVoucherId, voucherId);
-        int count = this.count(queryWrapper);
-        if (count > 0) {
+    public Result createVoucherOrder(VoucherOrder order) {
+        //⼀⼈⼀单:唯一索引(user_id, voucher_id)冲突时忽略,重复投递的消息也会被忽略
+        int inserted = getBaseMapper().insertIgnoreBatch(Collections.singletonList(order));
+        if (inserted == 0) {
+            if (getById(order.getId()) != null) {
+                // 重复投递,订单已经创建
+                return Result.ok(order.getId());
+            }
             log.error("⽤户已经购买过⼀次");
-            return;
+            return Result.fail("不能重复下单");
         }
 
         // 扣减库存
         boolean update = seckillVoucherService.update()
                 .setSql("stock = stock - 1")
-                .eq("voucher_id", voucherId)
+                .eq("voucher_id", order.getVoucherId())
                 // CAS 乐观锁解决超卖
                 .gt("stock", 0)
                 .update();
         if (!update) {
             log.error("库存不足");
-            return;
+            // 回滚已经写入的订单
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return Result.fail("库存不足");
         }
+        return Result.ok(order.getId());
+    }
 
-        save(order);
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public Set<Long> createVoucherOrders(List<VoucherOrder> orders) {
+        // 按优惠券分组,每个优惠券一条insert语句写入订单,再按实际写入的行数扣减一次库存
+        Map<Long, List<VoucherOrder>> ordersByVoucher = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        Set<Long> persisted = new HashSet<>(orders.size());
+        ordersByVoucher.forEach((voucherId, voucherOrders) -> {
+            // 唯一索引(user_id, voucher_id)和主键冲突的订单(重复投递)被忽略
+            int inserted = getBaseMapper().insertIgnoreBatch(voucherOrders);
+            List<Long> ids = voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+            if (inserted == voucherOrders.size()) {
+                persisted.addAll(ids);
+            } else {
+                // 有订单被忽略,查询哪些订单存在:重复投递的订单已经存在,一人一单冲突的订单不存在
+                listByIds(ids).forEach(order -> persisted.add(order.getId()));
+            }
+            if (inserted == 0) {
+                return;
+            }
+            boolean update = seckillVoucherService.update()
+                    .setSql("stock = stock - " + inserted)
+                    .eq("voucher_id", voucherId)
+                    // CAS 乐观锁解决超卖
+                    .ge("stock", inserted)
+                    .update();
+            if (!update) {
+                throw new IllegalStateException("优惠券" + voucherId + "库存不足" + inserted);
+            }
+        });
+        return persisted;
     }
 
     /*@Transactional
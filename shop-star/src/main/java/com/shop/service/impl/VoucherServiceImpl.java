@@ -1,13 +1,17 @@
 package com.shop.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.shop.config.SeckillProperties;
 import com.shop.dto.Result;
 import com.shop.entity.SeckillVoucher;
 import com.shop.entity.Voucher;
 import com.shop.mapper.VoucherMapper;
 import com.shop.service.ISeckillVoucherService;
 import com.shop.service.IVoucherService;
-import com.shop.utils.RedisConstants;
+import com.shop.utils.CacheClient;
+import com.shop.utils.SeckillKeys;
+import com.shop.utils.SeckillVoucherRegistry;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -15,9 +19,14 @@ import org.springframework.transaction.annotation.Transactional;
 import javax.annotation.Resource;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import static com.shop.utils.RedisConstants.CACHE_VOUCHER_SHOP_KEY;
+import static com.shop.utils.RedisConstants.CACHE_VOUCHER_SHOP_TTL;
+import static com.shop.utils.RedisConstants.LOCK_VOUCHER_SHOP_KEY;
+
 /**
  * <p>
  * 服务实现类
@@ -34,12 +43,70 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private SeckillVoucherRegistry seckillVoucherRegistry;
+
+    @Resource
+    private CacheClient cacheClient;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 查询优惠券信息,店铺的优惠券列表缓存,新增优惠券时删除
+        List<Voucher> cached = cacheClient.queryListWithMutex(CACHE_VOUCHER_SHOP_KEY + shopId, Voucher.class,
+                LOCK_VOUCHER_SHOP_KEY + shopId, () -> getBaseMapper().queryVoucherOfShop(shopId),
+                CACHE_VOUCHER_SHOP_TTL, TimeUnit.MINUTES);
         // 返回结果
-        return Result.ok(vouchers);
+        return Result.ok(overlayStock(cached));
+    }
+
+    /**
+     * 秒杀券的库存使用redis中的实时库存,一次MGET读取所有秒杀券所有分片的库存
+     *
+     * @param cached 缓存中的优惠券列表,与本地缓存共享,不能修改
+     * @return 复制后的优惠券列表
+     */
+    private List<Voucher> overlayStock(List<Voucher> cached) {
+        int partitions = seckillProperties.getPartitions();
+        List<String> keys = new ArrayList<>();
+        for (Voucher voucher : cached) {
+            if (voucher.getBeginTime() != null) {
+                keys.addAll(SeckillKeys.stockKeys(voucher.getId(), partitions));
+            }
+        }
+        List<String> stocks = keys.isEmpty() ? null : stringRedisTemplate.opsForValue().multiGet(keys);
+        int shards = Math.max(partitions, 1);
+        int index = 0;
+        List<Voucher> vouchers = new ArrayList<>(cached.size());
+        for (Voucher voucher : cached) {
+            Voucher copy = BeanUtil.copyProperties(voucher, Voucher.class);
+            if (voucher.getBeginTime() != null && stocks != null) {
+                int stock = 0;
+                boolean found = false;
+                for (String value : stocks.subList(index, index + shards)) {
+                    if (value != null) {
+                        stock += Integer.parseInt(value);
+                        found = true;
+                    }
+                }
+                // redis中没有库存(已过期或丢失)时使用数据库中的库存
+                if (found) {
+                    copy.setStock(Math.max(stock, 0));
+                }
+                index += shards;
+            }
+            vouchers.add(copy);
+        }
+        return vouchers;
+    }
+
+    @Override
+    @Transactional
+    public void addVoucher(Voucher voucher) {
+        save(voucher);
+        cacheClient.invalidateAfterCommit(CACHE_VOUCHER_SHOP_KEY + voucher.getShopId());
     }
 
     @Override
@@ -55,13 +122,21 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
         LocalDateTime endTime = voucher.getEndTime();
-        LocalDateTime beginTime = voucher.getBeginTime();
-        Duration duration = Duration.between(beginTime, endTime);
-        long ttl = duration.getSeconds();
-        //    保存秒杀的库存到redis
-        String key = RedisConstants.SECKILL_STOCK_KEY + voucher.getId();
-        stringRedisTemplate
-                .opsForValue()
-                .set(key, voucher.getStock().toString(), ttl, TimeUnit.SECONDS);
+        // 库存保留到秒杀结束
+        Duration duration = Duration.between(LocalDateTime.now(), endTime);
+        long ttl = Math.max(duration.getSeconds(), 1);
+        //    保存秒杀的库存到redis,分片时库存平均分配到各个分片
+        int partitions = seckillProperties.getPartitions();
+        List<String> keys = SeckillKeys.stockKeys(voucher.getId(), partitions);
+        List<Integer> stocks = SeckillKeys.splitStock(voucher.getStock(), partitions);
+        for (int i = 0; i < keys.size(); i++) {
+            stringRedisTemplate
+                    .opsForValue()
+                    .set(keys.get(i), stocks.get(i).toString(), ttl, TimeUnit.SECONDS);
+        }
+        // 清除所有节点上该优惠券售罄或失效的标记
+        seckillVoucherRegistry.reset(voucher.getId());
+        seckillVoucherRegistry.updateWindow(voucher.getId(), voucher.getBeginTime(), endTime);
+        cacheClient.invalidateAfterCommit(CACHE_VOUCHER_SHOP_KEY + voucher.getShopId());
     }
 }
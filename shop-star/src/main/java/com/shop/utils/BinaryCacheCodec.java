@@ -0,0 +1,482 @@
+package com.shop.utils;
+
+import net.jpountz.lz4.LZ4Factory;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 紧凑的二进制编解码器
+ * <p>
+ * 格式: 魔数(1字节) 标志位(1字节) [逻辑过期时间毫秒(8字节)] [重建耗时毫秒(8字节)] 结构指纹(4字节) [压缩前长度(4字节)] 数据
+ * <p>
+ * 数据按字段序号编码:每个非空字段写入 序号+值,以0结束,字段序号为类中字段声明的顺序。
+ * 实体类字段变化时结构指纹不一致,解码抛出异常,由调用方当作缓存未命中重新加载。
+ * 数据超过阈值时使用LZ4压缩
+ *
+ * @author humeng
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    private static final byte MAGIC = (byte) 0xB1;
+
+    private static final int FLAG_COMPRESSED = 1;
+    private static final int FLAG_LIST = 1 << 1;
+    private static final int FLAG_LOGICAL = 1 << 2;
+    private static final int FLAG_NULL = 1 << 3;
+    private static final int FLAG_DELTA = 1 << 4;
+
+    private static final int KIND_STRING = 1;
+    private static final int KIND_LONG = 2;
+    private static final int KIND_INT = 3;
+    private static final int KIND_DOUBLE = 4;
+    private static final int KIND_BOOLEAN = 5;
+    private static final int KIND_LOCAL_DATE_TIME = 6;
+    private static final int KIND_FLOAT = 7;
+
+    private static final LZ4Factory LZ4 = LZ4Factory.fastestInstance();
+
+    /**
+     * 不支持的类型的占位
+     */
+    private static final Schema UNSUPPORTED = new Schema(null, new Field[0], new int[0], 0);
+
+    /**
+     * 超过该字节数才压缩,小于等于0不压缩
+     */
+    private final int compressThreshold;
+
+    private final ConcurrentHashMap<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    public BinaryCacheCodec(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    @Override
+    public boolean canEncode(Object value) {
+        if (value instanceof RedisData) {
+            value = ((RedisData<?>) value).getData();
+        }
+        if (value == null) {
+            return true;
+        }
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                if (element != null) {
+                    return schema(element.getClass()) != UNSUPPORTED;
+                }
+            }
+            return true;
+        }
+        return schema(value.getClass()) != UNSUPPORTED;
+    }
+
+    @Override
+    public boolean canDecode(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == MAGIC;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return write(value, 0, 0L, 0L);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return type.cast(read(bytes, type, null));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> List<T> decodeList(byte[] bytes, Class<T> type) {
+        return (List<T>) read(bytes, type, null);
+    }
+
+    @Override
+    public byte[] encodeRedisData(RedisData<?> redisData) {
+        Long delta = redisData.getDelta();
+        int flags = delta == null ? FLAG_LOGICAL : FLAG_LOGICAL | FLAG_DELTA;
+        return write(redisData.getData(), flags, toMillis(redisData.getExpireTime()), delta == null ? 0L : delta);
+    }
+
+    @Override
+    public <T> RedisData<T> decodeRedisData(byte[] bytes, Class<T> type) {
+        RedisData<T> redisData = new RedisData<>();
+        redisData.setData(type.cast(read(bytes, type, redisData)));
+        return redisData;
+    }
+
+    private byte[] write(Object value, int flags, long expireMillis, long delta) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(128);
+        int fingerprint = 0;
+        if (value == null) {
+            flags |= FLAG_NULL;
+        } else if (value instanceof List) {
+            flags |= FLAG_LIST;
+            List<?> list = (List<?>) value;
+            Schema schema = null;
+            writeVarLong(body, list.size());
+            for (Object element : list) {
+                if (element == null) {
+                    body.write(0);
+                    continue;
+                }
+                if (schema == null) {
+                    schema = requireSchema(element.getClass());
+                    fingerprint = schema.fingerprint;
+                }
+                body.write(1);
+                schema.write(element, body);
+            }
+        } else {
+            Schema schema = requireSchema(value.getClass());
+            fingerprint = schema.fingerprint;
+            schema.write(value, body);
+        }
+
+        byte[] raw = body.toByteArray();
+        byte[] payload = raw;
+        if (compressThreshold > 0 && raw.length > compressThreshold) {
+            byte[] compressed = LZ4.fastCompressor().compress(raw);
+            if (compressed.length < raw.length) {
+                flags |= FLAG_COMPRESSED;
+                payload = compressed;
+            }
+        }
+
+        boolean logical = (flags & FLAG_LOGICAL) != 0;
+        boolean hasDelta = (flags & FLAG_DELTA) != 0;
+        boolean compressed = (flags & FLAG_COMPRESSED) != 0;
+        ByteBuffer buffer = ByteBuffer.allocate(
+                2 + (logical ? 8 : 0) + (hasDelta ? 8 : 0) + 4 + (compressed ? 4 : 0) + payload.length);
+        buffer.put(MAGIC).put((byte) flags);
+        if (logical) {
+            buffer.putLong(expireMillis);
+        }
+        if (hasDelta) {
+            buffer.putLong(delta);
+        }
+        buffer.putInt(fingerprint);
+        if (compressed) {
+            buffer.putInt(raw.length);
+        }
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    /**
+     * @param redisData 不为null时把逻辑过期时间和重建耗时写入其中
+     */
+    private Object read(byte[] bytes, Class<?> type, RedisData<?> redisData) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.get() != MAGIC) {
+            throw new IllegalArgumentException("不是二进制缓存格式");
+        }
+        int flags = buffer.get();
+        if ((flags & FLAG_LOGICAL) != 0) {
+            long expireMillis = buffer.getLong();
+            if (redisData != null) {
+                redisData.setExpireTime(fromMillis(expireMillis));
+            }
+        }
+        if ((flags & FLAG_DELTA) != 0) {
+            long delta = buffer.getLong();
+            if (redisData != null) {
+                redisData.setDelta(delta);
+            }
+        }
+        int fingerprint = buffer.getInt();
+        if ((flags & FLAG_NULL) != 0) {
+            return null;
+        }
+        Input in;
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            int rawLength = buffer.getInt();
+            in = new Input(LZ4.fastDecompressor().decompress(bytes, buffer.position(), rawLength), 0);
+        } else {
+            in = new Input(bytes, buffer.position());
+        }
+
+        Schema schema = requireSchema(type);
+        if ((flags & FLAG_LIST) != 0) {
+            int size = (int) in.readVarLong();
+            if (size > 0 && fingerprint != 0) {
+                checkFingerprint(schema, fingerprint, type);
+            }
+            List<Object> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(in.readByte() == 0 ? null : schema.read(in));
+            }
+            return list.isEmpty() ? Collections.emptyList() : list;
+        }
+        checkFingerprint(schema, fingerprint, type);
+        return schema.read(in);
+    }
+
+    private static void checkFingerprint(Schema schema, int fingerprint, Class<?> type) {
+        if (schema.fingerprint != fingerprint) {
+            throw new IllegalStateException("缓存数据的结构与" + type.getName() + "不一致");
+        }
+    }
+
+    private Schema requireSchema(Class<?> type) {
+        Schema schema = schema(type);
+        if (schema == UNSUPPORTED) {
+            throw new IllegalArgumentException("二进制编码不支持的类型:" + type.getName());
+        }
+        return schema;
+    }
+
+    private Schema schema(Class<?> type) {
+        return schemas.computeIfAbsent(type, BinaryCacheCodec::createSchema);
+    }
+
+    private static Schema createSchema(Class<?> type) {
+        Constructor<?> constructor;
+        try {
+            constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+        } catch (NoSuchMethodException | RuntimeException e) {
+            return UNSUPPORTED;
+        }
+        List<Field> fields = new ArrayList<>();
+        List<Integer> kinds = new ArrayList<>();
+        StringBuilder signature = new StringBuilder(type.getName());
+        for (Field field : type.getDeclaredFields()) {
+            int modifiers = field.getModifiers();
+            if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                continue;
+            }
+            int kind = kindOf(field.getType());
+            if (kind == 0) {
+                return UNSUPPORTED;
+            }
+            field.setAccessible(true);
+            fields.add(field);
+            kinds.add(kind);
+            signature.append(';').append(field.getName()).append(':').append(kind);
+        }
+        int[] kindArray = new int[kinds.size()];
+        for (int i = 0; i < kindArray.length; i++) {
+            kindArray[i] = kinds.get(i);
+        }
+        return new Schema(constructor, fields.toArray(new Field[0]), kindArray, signature.toString().hashCode());
+    }
+
+    private static int kindOf(Class<?> type) {
+        if (type == String.class) {
+            return KIND_STRING;
+        }
+        if (type == Long.class || type == long.class) {
+            return KIND_LONG;
+        }
+        if (type == Integer.class || type == int.class) {
+            return KIND_INT;
+        }
+        if (type == Double.class || type == double.class) {
+            return KIND_DOUBLE;
+        }
+        if (type == Boolean.class || type == boolean.class) {
+            return KIND_BOOLEAN;
+        }
+        if (type == LocalDateTime.class) {
+            return KIND_LOCAL_DATE_TIME;
+        }
+        if (type == Float.class || type == float.class) {
+            return KIND_FLOAT;
+        }
+        return 0;
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime fromMillis(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeZigZag(ByteArrayOutputStream out, long value) {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static void writeFixed64(ByteArrayOutputStream out, long value) {
+        for (int i = 56; i >= 0; i -= 8) {
+            out.write((int) (value >>> i));
+        }
+    }
+
+    /**
+     * 类的编码结构
+     */
+    private static final class Schema {
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final int[] kinds;
+        private final int fingerprint;
+
+        private Schema(Constructor<?> constructor, Field[] fields, int[] kinds, int fingerprint) {
+            this.constructor = constructor;
+            this.fields = fields;
+            this.kinds = kinds;
+            this.fingerprint = fingerprint;
+        }
+
+        private void write(Object obj, ByteArrayOutputStream out) {
+            try {
+                for (int i = 0; i < fields.length; i++) {
+                    Object value = fields[i].get(obj);
+                    if (value == null) {
+                        continue;
+                    }
+                    writeVarLong(out, i + 1);
+                    switch (kinds[i]) {
+                        case KIND_STRING:
+                            byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+                            writeVarLong(out, bytes.length);
+                            out.write(bytes, 0, bytes.length);
+                            break;
+                        case KIND_LONG:
+                        case KIND_INT:
+                            writeZigZag(out, ((Number) value).longValue());
+                            break;
+                        case KIND_DOUBLE:
+                            writeFixed64(out, Double.doubleToLongBits((Double) value));
+                            break;
+                        case KIND_FLOAT:
+                            writeFixed64(out, Double.doubleToLongBits((Float) value));
+                            break;
+                        case KIND_BOOLEAN:
+                            out.write((Boolean) value ? 1 : 0);
+                            break;
+                        case KIND_LOCAL_DATE_TIME:
+                            LocalDateTime time = (LocalDateTime) value;
+                            writeZigZag(out, time.toEpochSecond(ZoneOffset.UTC));
+                            writeVarLong(out, time.getNano());
+                            break;
+                        default:
+                            throw new IllegalStateException("未知的字段类型");
+                    }
+                }
+                out.write(0);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private Object read(Input in) {
+            try {
+                Object obj = constructor.newInstance();
+                while (true) {
+                    int tag = (int) in.readVarLong();
+                    if (tag == 0) {
+                        return obj;
+                    }
+                    int i = tag - 1;
+                    if (i >= fields.length) {
+                        throw new IllegalStateException("字段序号超出范围:" + tag);
+                    }
+                    Field field = fields[i];
+                    switch (kinds[i]) {
+                        case KIND_STRING:
+                            field.set(obj, in.readString());
+                            break;
+                        case KIND_LONG:
+                            field.set(obj, in.readZigZag());
+                            break;
+                        case KIND_INT:
+                            field.set(obj, (int) in.readZigZag());
+                            break;
+                        case KIND_DOUBLE:
+                            field.set(obj, Double.longBitsToDouble(in.readFixed64()));
+                            break;
+                        case KIND_FLOAT:
+                            field.set(obj, (float) Double.longBitsToDouble(in.readFixed64()));
+                            break;
+                        case KIND_BOOLEAN:
+                            field.set(obj, in.readByte() != 0);
+                            break;
+                        case KIND_LOCAL_DATE_TIME:
+                            long second = in.readZigZag();
+                            int nano = (int) in.readVarLong();
+                            field.set(obj, LocalDateTime.ofEpochSecond(second, nano, ZoneOffset.UTC));
+                            break;
+                        default:
+                            throw new IllegalStateException("未知的字段类型");
+                    }
+                }
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * 读取数据的游标
+     */
+    private static final class Input {
+        private final byte[] bytes;
+        private int position;
+
+        private Input(byte[] bytes, int position) {
+            this.bytes = bytes;
+            this.position = position;
+        }
+
+        private int readByte() {
+            return bytes[position++] & 0xFF;
+        }
+
+        private long readVarLong() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IllegalStateException("varint格式错误");
+        }
+
+        private long readZigZag() {
+            long n = readVarLong();
+            return (n >>> 1) ^ -(n & 1);
+        }
+
+        private long readFixed64() {
+            long result = 0;
+            for (int i = 0; i < 8; i++) {
+                result = (result << 8) | readByte();
+            }
+            return result;
+        }
+
+        private String readString() {
+            int length = (int) readVarLong();
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
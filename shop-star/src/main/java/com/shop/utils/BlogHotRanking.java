@@ -0,0 +1,150 @@
+package com.shop.utils;
+
+import com.shop.config.BlogProperties;
+import com.shop.entity.Blog;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.shop.utils.RedisConstants.BLOG_HOT_EPOCH_KEY;
+import static com.shop.utils.RedisConstants.BLOG_HOT_KEY;
+
+/**
+ * 热门笔记排行榜
+ * <p>
+ * 热度随时间指数衰减:每次点赞贡献 e^((点赞时间 - epoch) / tau),发布笔记贡献postWeight倍,
+ * 取消点赞时按原来的点赞时间减去对应的贡献。
+ * 由于所有笔记的热度使用相同的epoch,按热度排序等价于按衰减到当前时刻的热度排序,点赞时只需要一次ZINCRBY。
+ * 定时把epoch移动到当前时间并等比例缩小所有热度,避免热度无限增长
+ *
+ * @author humeng
+ */
+@Slf4j
+@Component
+public class BlogHotRanking {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private BlogProperties blogProperties;
+
+    private static final DefaultRedisScript<Long> INCR_SCRIPT;
+
+    private static final DefaultRedisScript<Long> NORMALIZE_SCRIPT;
+
+    static {
+        INCR_SCRIPT = new DefaultRedisScript<>();
+        INCR_SCRIPT.setLocation(new ClassPathResource("blog_hot_incr.lua"));
+        INCR_SCRIPT.setResultType(Long.class);
+        NORMALIZE_SCRIPT = new DefaultRedisScript<>();
+        NORMALIZE_SCRIPT.setLocation(new ClassPathResource("blog_hot_normalize.lua"));
+        NORMALIZE_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final List<String> KEYS = Arrays.asList(BLOG_HOT_KEY, BLOG_HOT_EPOCH_KEY);
+
+    public void onLike(Long blogId, long likeTime) {
+        incr(blogId, 1, likeTime);
+    }
+
+    /**
+     * 取消点赞
+     *
+     * @param blogId   笔记id
+     * @param likeTime 原来点赞的时间
+     */
+    public void onUnlike(Long blogId, long likeTime) {
+        incr(blogId, -1, likeTime);
+    }
+
+    public void onPost(Long blogId, long postTime) {
+        incr(blogId, blogProperties.getHot().getPostWeight(), postTime);
+    }
+
+    private void incr(Long blogId, double weight, long eventTime) {
+        try {
+            stringRedisTemplate.execute(INCR_SCRIPT, KEYS, blogId.toString(), String.valueOf(weight),
+                    String.valueOf(eventTime), String.valueOf(tau()), String.valueOf(System.currentTimeMillis()));
+        } catch (Exception e) {
+            // 热度只影响排序,失败时不影响点赞和发布
+            log.warn("更新笔记{}的热度失败", blogId, e);
+        }
+    }
+
+    /**
+     * 按热度从高到低分页查询笔记id
+     *
+     * @param current  页码,从1开始
+     * @param pageSize 每页数量
+     * @return 排行榜不存在时返回null
+     */
+    public List<Long> page(int current, int pageSize) {
+        long start = (long) (current - 1) * pageSize;
+        Set<String> ids = stringRedisTemplate.opsForZSet().reverseRange(BLOG_HOT_KEY, start, start + pageSize - 1);
+        if ((ids == null || ids.isEmpty()) && !Boolean.TRUE.equals(stringRedisTemplate.hasKey(BLOG_HOT_KEY))) {
+            return null;
+        }
+        return ids == null ? null : ids.stream().map(Long::valueOf).collect(Collectors.toList());
+    }
+
+    public boolean exists() {
+        return Boolean.TRUE.equals(stringRedisTemplate.hasKey(BLOG_HOT_KEY));
+    }
+
+    /**
+     * 排行榜不存在时用数据库中的笔记初始化,点赞都按发布时间计算
+     *
+     * @param blogs 笔记,需要id、liked和createTime
+     */
+    public void seed(List<Blog> blogs) {
+        long now = System.currentTimeMillis();
+        stringRedisTemplate.opsForValue().setIfAbsent(BLOG_HOT_EPOCH_KEY, String.valueOf(now));
+        String value = stringRedisTemplate.opsForValue().get(BLOG_HOT_EPOCH_KEY);
+        long epoch = value == null ? now : Long.parseLong(value);
+        double tau = tau();
+        double postWeight = blogProperties.getHot().getPostWeight();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Blog blog : blogs) {
+                long createTime = blog.getCreateTime() == null ? now
+                        : blog.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                int liked = blog.getLiked() == null ? 0 : blog.getLiked();
+                double score = (postWeight + liked) * Math.exp((createTime - epoch) / tau);
+                conn.zAdd(BLOG_HOT_KEY, score, blog.getId().toString());
+            }
+            return null;
+        });
+        log.info("用{}篇笔记初始化热门笔记排行榜", blogs.size());
+    }
+
+    /**
+     * 定时移动epoch并裁剪排行榜
+     */
+    @Scheduled(fixedDelayString = "${shop.blog.hot.normalize-millis:3600000}",
+            initialDelayString = "${shop.blog.hot.normalize-millis:3600000}")
+    public void normalize() {
+        Long count = stringRedisTemplate.execute(NORMALIZE_SCRIPT, KEYS, String.valueOf(System.currentTimeMillis()),
+                String.valueOf(tau()), String.valueOf(blogProperties.getHot().getMaxSize()));
+        log.debug("热门笔记排行榜归一化完成,笔记数{}", count);
+    }
+
+    /**
+     * 衰减的时间常数(毫秒),经过半衰期热度减半:tau = 半衰期 / ln2
+     */
+    private double tau() {
+        return blogProperties.getHot().getHalfLifeHours() * 3600_000 / Math.log(2);
+    }
+}
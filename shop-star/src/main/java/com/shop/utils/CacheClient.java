@@ -1,28 +1,79 @@
 package com.shop.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.shop.config.CacheProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
+import static com.shop.utils.RedisConstants.BLOOM_FILTER_KEY;
+import static com.shop.utils.RedisConstants.CACHE_BLOOM_CHANNEL;
+import static com.shop.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static com.shop.utils.RedisConstants.CACHE_INVALIDATE_RETRY_STREAM;
+import static com.shop.utils.RedisConstants.CACHE_LOADED_CHANNEL;
 import static com.shop.utils.RedisConstants.CACHE_NULL_TTL;
 import static com.shop.utils.RedisConstants.LOCK_SHOP_TTL;
 
 /**
  * 操作redis的工具类
  * 封装了设置缓存,设置带有逻辑过期字段的缓存
+ * 缓存值通过{@link CacheCodec}编解码后以字节数组存入redis,空值(缓存穿透)存为空字节数组
  * <p>
- * 查询数据:缓存空值解决缓存穿透的查询,互斥锁和逻辑过期解决缓存击穿的查询
+ * 查询数据:缓存空值解决缓存穿透的查询,互斥锁和逻辑过期解决缓存击穿的查询,概率提前刷新的查询,以及按id批量查询
+ * <p>
+ * 写入带过期时间的缓存时,过期时间会加上随机抖动,避免同时写入的key同时过期
+ * <p>
+ * 所有查询在redis前面都有一层进程内的本地缓存(L1),按条目数和字节数限制大小,使用W-TinyLFU淘汰。
+ * 数据变更时调用{@link #invalidate(String)},通过redis发布订阅通知所有节点删除本地副本;
+ * 在事务中变更数据时调用{@link #invalidateAfterCommit(String)},事务提交后再删除缓存。
+ * 注意:本地缓存中的对象会被多个请求共享,调用方不要修改查询返回的对象
+ * <p>
+ * 所有经过本地缓存的key都会由{@link HotKeyDetector}统计访问次数,热点key额外保存一份短时间过期的副本,
+ * 不受本地缓存容量淘汰的影响,本地缓存关闭时也生效
+ * <p>
+ * 对注册了布隆过滤器的key前缀,查询前先用布隆过滤器判断id是否存在,不存在的id直接返回,不访问redis和数据库
  *
  * @author humeng
  */
@@ -32,15 +83,465 @@ public class CacheClient {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 读写缓存值的template,value为编码后的字节数组
+     */
+    @Resource
+    private RedisTemplate<String, byte[]> cacheRedisTemplate;
+
+    @Resource
+    private CacheCodec cacheCodec;
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 逻辑过期缓存的重建线程池
+     */
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    /**
+     * 缓存穿透时存储的空值
+     */
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * 本地缓存,key为redis的key
+     */
+    private Cache<String, LocalValue> localCache;
+
+    /**
+     * 热点key的本地副本
+     */
+    private Cache<String, LocalValue> hotCache;
+
+    /**
+     * 进程内合并同一个key的并发缓存重建
+     */
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    /**
+     * 等待其他节点重建缓存的通知,key为缓存key
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> loadedWaiters = new ConcurrentHashMap<>();
+
+    /**
+     * 布隆过滤器,key为缓存key前缀
+     */
+    private final ConcurrentHashMap<String, RedisBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Counter> bloomRejectCounters = new ConcurrentHashMap<>();
+
+    /**
+     * 延迟删除缓存的线程
+     */
+    private final ScheduledExecutorService invalidateScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cache-invalidate");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    private void initLocalCache() {
+        CacheProperties.HotKey hotKey = cacheProperties.getHotKey();
+        hotCache = Caffeine.newBuilder()
+                // 除了热点key本身,还有hotRead的多个视图
+                .maximumSize(hotKey.getTopK() * 4L)
+                .expireAfterWrite(hotKey.getLocalTtlMillis(), TimeUnit.MILLISECONDS)
+                .build();
+        CacheProperties.Local local = cacheProperties.getLocal();
+        if (!local.isEnabled()) {
+            return;
+        }
+        long maximumWeight = local.getMaximumWeight();
+        // 每个条目的最小权重,使条目数也不会超过 maximumSize
+        int minWeight = (int) Math.min(Integer.MAX_VALUE,
+                (maximumWeight + local.getMaximumSize() - 1) / local.getMaximumSize());
+        localCache = Caffeine.newBuilder()
+                .maximumWeight(maximumWeight)
+                .weigher((String key, LocalValue value) -> Math.max(value.getWeight(), minWeight))
+                .expireAfterWrite(local.getExpireSeconds(), TimeUnit.SECONDS)
+                .build();
+    }
+
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        cacheRedisTemplate.opsForValue().set(key, cacheCodec.encode(value), jitterMillis(time, unit), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 设置不过期的缓存
+     *
+     * @param key   缓存key
+     * @param value 对象或对象的List
+     */
+    public void set(String key, Object value) {
+        cacheRedisTemplate.opsForValue().set(key, cacheCodec.encode(value));
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
         RedisData<Object> redisData = new RedisData<>();
         redisData.setData(value);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        cacheRedisTemplate.opsForValue().set(key, cacheCodec.encodeRedisData(redisData));
+    }
+
+    /**
+     * 查询List类型的缓存
+     *
+     * @param key  缓存key
+     * @param type 元素类型
+     * @param <R>  元素类型
+     * @return 不存在或无法解码时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public <R> List<R> getList(String key, Class<R> type) {
+        LocalValue local = getLocal(key);
+        if (local != null) {
+            return (List<R>) local.getValue();
+        }
+        LocalValue cached = decodeListAndCache(key, cacheRedisTemplate.opsForValue().get(key), type);
+        return cached == null ? null : (List<R>) cached.getValue();
+    }
+
+    /**
+     * 查询List类型的缓存,互斥锁防止缓存击穿,缓存不过期
+     *
+     * @param key     缓存key
+     * @param type    元素类型
+     * @param lockKey 锁的key
+     * @param loader  查询数据库的回调函数
+     * @param <R>     元素类型
+     * @return 数据库中也没有数据时返回空List
+     */
+    public <R> List<R> queryListWithMutex(String key, Class<R> type, String lockKey, Supplier<List<R>> loader) {
+        return queryListWithMutex(key, type, lockKey, loader, loaded -> {
+            // 空List不缓存,下次查询重新加载
+            if (!loaded.isEmpty()) {
+                set(key, loaded);
+            }
+        });
+    }
+
+    /**
+     * 查询List类型的缓存,互斥锁防止缓存击穿,空List也会缓存,防止缓存穿透
+     *
+     * @param key     缓存key
+     * @param type    元素类型
+     * @param lockKey 锁的key
+     * @param loader  查询数据库的回调函数
+     * @param time    缓存过期时间
+     * @param unit    过期时间单位
+     * @param <R>     元素类型
+     * @return 数据库中也没有数据时返回空List
+     */
+    public <R> List<R> queryListWithMutex(String key, Class<R> type, String lockKey, Supplier<List<R>> loader,
+                                          Long time, TimeUnit unit) {
+        return queryListWithMutex(key, type, lockKey, loader, loaded -> set(key, loaded, time, unit));
+    }
+
+    private <R> List<R> queryListWithMutex(String key, Class<R> type, String lockKey, Supplier<List<R>> loader,
+                                           Consumer<List<R>> writer) {
+        List<R> list = getList(key, type);
+        if (list != null) {
+            return list;
+        }
+        return singleFlight.execute(key, () -> loadWithMutex(key, lockKey,
+                () -> decodeListAndCache(key, cacheRedisTemplate.opsForValue().get(key), type),
+                loader,
+                writer));
+    }
+
+    /**
+     * 批量设置缓存,使用一次pipeline写入
+     *
+     * @param keyPrefix key 前缀
+     * @param values    id与数据的映射
+     * @param time      缓存过期时间
+     * @param unit      过期时间单位
+     */
+    public void setBatch(String keyPrefix, Map<?, ?> values, Long time, TimeUnit unit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        Map<byte[], byte[]> encoded = new LinkedHashMap<>(values.size());
+        values.forEach((id, value) -> encoded.put(
+                (keyPrefix + id).getBytes(StandardCharsets.UTF_8), cacheCodec.encode(value)));
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            RedisStringCommands commands = connection.stringCommands();
+            encoded.forEach((rawKey, bytes) -> commands.set(rawKey, bytes,
+                    Expiration.milliseconds(jitterMillis(time, unit)), RedisStringCommands.SetOption.upsert()));
+            return null;
+        });
+    }
+
+    /**
+     * 删除缓存,并广播给所有节点删除本地缓存
+     *
+     * @param key 缓存key
+     */
+    public void invalidate(String key) {
+        cacheRedisTemplate.delete(key);
+        evictLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 事务提交后删除缓存,没有事务时立即删除
+     * <p>
+     * 在事务中删除缓存,提交前并发的读请求会把旧数据重新写入缓存。
+     * 提交后删除失败的key写入redis stream,由定时任务重试;
+     * 配置了延迟删除时,提交后再延迟删除一次,删除提交前已经读到旧数据的请求回填的缓存
+     *
+     * @param key 缓存key
+     */
+    public void invalidateAfterCommit(String key) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            invalidateWithRetry(key);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                invalidateWithRetry(key);
+            }
+        });
+    }
+
+    private void invalidateWithRetry(String key) {
+        invalidateOrEnqueue(key);
+        long delayMillis = cacheProperties.getInvalidation().getDelayMillis();
+        if (delayMillis > 0) {
+            invalidateScheduler.schedule(() -> invalidateOrEnqueue(key), delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void invalidateOrEnqueue(String key) {
+        try {
+            invalidate(key);
+        } catch (Exception e) {
+            evictLocal(key);
+            log.warn("删除缓存失败,加入重试队列,key:{}", key, e);
+            try {
+                stringRedisTemplate.opsForStream().add(StreamRecords.string(Collections.singletonMap("key", key))
+                        .withStreamKey(CACHE_INVALIDATE_RETRY_STREAM));
+            } catch (Exception ex) {
+                log.error("删除缓存失败且无法加入重试队列,key:{}", key, ex);
+            }
+        }
+    }
+
+    /**
+     * 定时重试删除失败的缓存,删除成功后从队列中移除
+     */
+    @Scheduled(fixedDelay = 5000, initialDelay = 5000)
+    public void retryInvalidations() {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(
+                CACHE_INVALIDATE_RETRY_STREAM, Range.unbounded(),
+                RedisZSetCommands.Limit.limit()
+                        .count(cacheProperties.getInvalidation().getRetryBatchSize()));
+        if (records == null) {
+            return;
+        }
+        for (MapRecord<String, Object, Object> record : records) {
+            invalidate((String) record.getValue().get("key"));
+            stringRedisTemplate.opsForStream().delete(CACHE_INVALIDATE_RETRY_STREAM, record.getId());
+        }
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        invalidateScheduler.shutdown();
+    }
+
+    /**
+     * 删除本节点的本地缓存,收到失效广播时调用
+     *
+     * @param key 缓存key
+     */
+    public void evictLocal(String key) {
+        if (localCache != null) {
+            localCache.invalidate(key);
+        }
+        hotCache.invalidate(key);
+        String viewPrefix = key + "#";
+        hotCache.asMap().keySet().removeIf(k -> k.startsWith(viewPrefix));
+    }
+
+    /**
+     * 读取数据,key是热点key时使用短时间过期的本地副本,用于不经过缓存查询方法的redis读取(如zset)
+     *
+     * @param key    统计访问次数的redis key
+     * @param view   同一个key的不同读取方式,如zset的元素数量和前几名
+     * @param loader 读取redis
+     * @param <T>    数据类型
+     * @return 数据
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T hotRead(String key, String view, Supplier<T> loader) {
+        if (!hotKeyDetector.record(key)) {
+            return loader.get();
+        }
+        return (T) hotCache.get(key + "#" + view, k -> new LocalValue(loader.get(), 0)).getValue();
+    }
+
+    /**
+     * 为缓存key前缀注册布隆过滤器,使用 shop.cache.bloom 中配置的容量和误判率
+     *
+     * @param keyPrefix 缓存key前缀
+     * @return 布隆过滤器,需要调用方用全量数据重建
+     */
+    public RedisBloomFilter registerBloomFilter(String keyPrefix) {
+        return bloomFilters.computeIfAbsent(keyPrefix, prefix -> {
+            CacheProperties.Bloom bloom = cacheProperties.getBloom();
+            RedisBloomFilter filter = new RedisBloomFilter(stringRedisTemplate,
+                    BLOOM_FILTER_KEY + prefix, bloom.getExpectedInsertions(), bloom.getFpp());
+            Gauge.builder("cache.bloom.fpp", filter, RedisBloomFilter::expectedFpp)
+                    .description("根据置位比例估算的误判率")
+                    .tag("prefix", prefix)
+                    .register(meterRegistry);
+            Gauge.builder("cache.bloom.fpp.configured", filter, RedisBloomFilter::getFpp)
+                    .description("配置的误判率")
+                    .tag("prefix", prefix)
+                    .register(meterRegistry);
+            bloomRejectCounters.put(prefix, Counter.builder("cache.bloom.rejected")
+                    .description("被布隆过滤器拦截的查询次数")
+                    .tag("prefix", prefix)
+                    .register(meterRegistry));
+            return filter;
+        });
+    }
+
+    /**
+     * 新增数据后把id加入布隆过滤器,并广播给其他节点
+     *
+     * @param keyPrefix 缓存key前缀
+     * @param id        数据id
+     */
+    public void addToBloomFilter(String keyPrefix, Object id) {
+        RedisBloomFilter filter = bloomFilters.get(keyPrefix);
+        if (filter == null) {
+            return;
+        }
+        filter.add(id);
+        stringRedisTemplate.convertAndSend(CACHE_BLOOM_CHANNEL, keyPrefix + id);
+    }
+
+    /**
+     * 收到其他节点新增数据的广播,更新本地镜像
+     *
+     * @param key 缓存key(前缀+id)
+     */
+    public void onBloomAdd(String key) {
+        String matched = null;
+        for (String prefix : bloomFilters.keySet()) {
+            if (key.startsWith(prefix) && (matched == null || prefix.length() > matched.length())) {
+                matched = prefix;
+            }
+        }
+        if (matched != null) {
+            bloomFilters.get(matched).addLocal(key.substring(matched.length()));
+        }
+    }
+
+    /**
+     * 定时从redis重新加载布隆过滤器的本地镜像,补上丢失的广播
+     */
+    @Scheduled(fixedDelay = 60000, initialDelay = 60000)
+    public void reloadBloomFilters() {
+        bloomFilters.values().forEach(filter -> {
+            try {
+                filter.reload();
+            } catch (Exception e) {
+                log.warn("重新加载布隆过滤器{}失败", filter.getKey(), e);
+            }
+        });
+    }
+
+    /**
+     * 布隆过滤器判断id一定不存在
+     */
+    private boolean rejectedByBloomFilter(String keyPrefix, Object id) {
+        RedisBloomFilter filter = bloomFilters.get(keyPrefix);
+        if (filter == null || filter.mightContain(id)) {
+            return false;
+        }
+        bloomRejectCounters.get(keyPrefix).increment();
+        return true;
+    }
+
+    private LocalValue getLocal(String key) {
+        boolean hot = hotKeyDetector.record(key);
+        if (hot) {
+            LocalValue hotValue = hotCache.getIfPresent(key);
+            if (hotValue != null) {
+                return hotValue;
+            }
+        }
+        LocalValue localValue = localCache == null ? null : localCache.getIfPresent(key);
+        if (hot && localValue != null) {
+            // 提升为热点副本
+            hotCache.put(key, localValue);
+        }
+        return localValue;
+    }
+
+    private LocalValue putLocal(String key, Object value, int weight) {
+        LocalValue localValue = new LocalValue(value, weight + key.length());
+        if (localCache != null) {
+            localCache.put(key, localValue);
+        }
+        if (hotKeyDetector.isHot(key)) {
+            hotCache.put(key, localValue);
+        }
+        return localValue;
+    }
+
+    /**
+     * 解码redis中的数据并放入本地缓存
+     *
+     * @return null表示未命中(包括数据无法解码);value为null表示缓存穿透时存储的空值
+     */
+    private <R> LocalValue decodeAndCache(String key, byte[] bytes, Class<R> type) {
+        if (bytes == null) {
+            return null;
+        }
+        if (bytes.length == 0) {
+            return putLocal(key, null, 0);
+        }
+        R r;
+        try {
+            r = cacheCodec.decode(bytes, type);
+        } catch (RuntimeException e) {
+            log.warn("缓存数据解码失败,当作未命中处理,key:{}", key, e);
+            return null;
+        }
+        return putLocal(key, r, bytes.length);
+    }
+
+    /**
+     * 解码redis中的List数据并放入本地缓存
+     *
+     * @return null表示未命中(包括数据无法解码)
+     */
+    private <R> LocalValue decodeListAndCache(String key, byte[] bytes, Class<R> type) {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        List<R> list;
+        try {
+            list = cacheCodec.decodeList(bytes, type);
+        } catch (RuntimeException e) {
+            log.warn("缓存数据解码失败,当作未命中处理,key:{}", key, e);
+            return null;
+        }
+        return putLocal(key, list, bytes.length);
     }
 
     /**
@@ -58,17 +559,21 @@ public class CacheClient {
      */
     public <R, ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFullback, Long time, TimeUnit unit) {
+        if (rejectedByBloomFilter(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
-
-        String json = stringRedisTemplate.opsForValue().get(key);
-
-        if (StrUtil.isNotBlank(json)) {
-            //    存在,直接返回
-            return JSONUtil.toBean(json, type);
+        // 先查本地缓存
+        LocalValue local = getLocal(key);
+        if (local != null) {
+            return type.cast(local.getValue());
         }
-        // 判断是否是空字符串,防止缓存穿透
-        if (json != null) {
-            return null;
+
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        LocalValue cached = decodeAndCache(key, bytes, type);
+        if (cached != null) {
+            //    存在,直接返回(空值说明是缓存穿透时存储的,防止缓存穿透)
+            return type.cast(cached.getValue());
         }
         // 缓存不存在,去数据库查
         // 使用函数式编程,调用调用者编写的代码
@@ -77,7 +582,7 @@ public class CacheClient {
         if (r == null) {
             //    数据库中也不存在
             //    缓存空值
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            cacheRedisTemplate.opsForValue().set(key, EMPTY, CACHE_NULL_TTL, TimeUnit.MINUTES);
             return null;
         }
 
@@ -87,11 +592,6 @@ public class CacheClient {
         return r;
     }
 
-    /**
-     * 创建10个固定的线程池
-     */
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
 
     /**
      * 逻辑过期解决缓存击穿
@@ -109,21 +609,31 @@ public class CacheClient {
      */
     public <R, ID> R queryWithLogicalExpire(
             String keyPrefix, ID id, Class<R> type, String lockKeyPrefix, Function<ID, R> dbFullback, Long time, TimeUnit unit) {
-
+        if (rejectedByBloomFilter(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
-
-        if (StrUtil.isBlank(json)) {
+        // 访问次数决定过期后重建的优先级
+        cacheRebuildExecutor.touch(key);
+        // 本地缓存中存的是带逻辑过期时间的数据,未过期直接返回
+        LocalValue local = getLocal(key);
+        if (local != null && local.getValue() instanceof RedisData) {
+            RedisData<?> localData = (RedisData<?>) local.getValue();
+            if (notExpired(localData)) {
+                return type.cast(localData.getData());
+            }
+        }
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        if (bytes == null || bytes.length == 0) {
+            // 未预热或者是缓存穿透时存储的空值
             return null;
         }
-
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-
-
-        LocalDateTime expireTime = redisData.getExpireTime();
-        if (LocalDateTime.now().isBefore(expireTime)) {
+        // 由set、queryWithMutex等写入的普通格式没有逻辑过期时间,当作已过期重建
+        RedisData<R> redisData = decodeRedisData(key, bytes, type);
+        R r = redisData == null ? null : redisData.getData();
+        if (notExpired(redisData)) {
             //    未过期
+            putLocal(key, redisData, bytes.length);
             return r;
         }
         // 已过期
@@ -138,31 +648,168 @@ public class CacheClient {
         // 获取锁成功
         //    DoubleCheck
         // DoubleCheck 若缓存没过期，直接返回。(当某个线程来获取锁后，缓存有可能已经重建完毕)
-        json = stringRedisTemplate.opsForValue().get(key);
-        redisData = JSONUtil.toBean(json, RedisData.class);
-        r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-
-        if (redisData.getExpireTime().isAfter(LocalDateTime.now())) {
+        redisData = decodeRedisData(key, cacheRedisTemplate.opsForValue().get(key), type);
+        if (notExpired(redisData)) {
             // 已经被重建,直接返回
-            return r;
+            unLock(lockKey);
+            return redisData.getData();
+        }
+        if (r == null) {
+            // 没有可以返回的旧数据,同步重建
+            try {
+                R dbR = dbFullback.apply(id);
+                setWithLogicalExpire(key, dbR, time, unit);
+                return dbR;
+            } finally {
+                unLock(lockKey);
+            }
         }
-        // 开启新线程执行缓存重建
-        CACHE_REBUILD_EXECUTOR.submit(() -> {
+        // 开启新线程执行缓存重建,同一个key已有重建任务或队列已满时直接释放锁并返回旧数据
+        boolean submitted = cacheRebuildExecutor.submit(key, () -> {
             try {
                 // 执行回调查询数据库
                 R dbR = dbFullback.apply(id);
                 setWithLogicalExpire(key, dbR, time, unit);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
             } finally {
                 unLock(lockKey);
             }
         });
+        if (!submitted) {
+            unLock(lockKey);
+        }
 
         return r;
     }
 
 
+    /**
+     * 逻辑过期时间为空(普通格式的缓存)时当作已过期
+     */
+    private static boolean notExpired(RedisData<?> redisData) {
+        return redisData != null && redisData.getExpireTime() != null
+                && LocalDateTime.now().isBefore(redisData.getExpireTime());
+    }
+
+    /**
+     * 按id批量查询,缓存空值解决缓存穿透
+     * <p>
+     * 本地缓存之外的key只用一次MGET查询redis,未命中的id用一次批量查询数据库,
+     * 查询结果(包括空值)用一次pipeline写回redis
+     *
+     * @param keyPrefix   key 前缀
+     * @param ids         查询数据的id
+     * @param type        查询数据的类型
+     * @param batchLoader 批量查询数据库的回调函数,参数为未命中的id,返回id与数据的映射
+     * @param time        缓存过期时间
+     * @param unit        过期时间单位
+     * @param <R>         数据类型
+     * @param <ID>        id的类型
+     * @return 与ids顺序一致的数据,不存在的id对应位置为null
+     */
+    public <R, ID> List<R> queryBatch(
+            String keyPrefix, List<ID> ids, Class<R> type,
+            Function<Collection<ID>, Map<ID, R>> batchLoader, Long time, TimeUnit unit) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        int size = ids.size();
+        Object[] results = new Object[size];
+        // 需要查询redis的下标
+        List<Integer> redisIndexes = new ArrayList<>(size);
+        List<String> redisKeys = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ID id = ids.get(i);
+            if (rejectedByBloomFilter(keyPrefix, id)) {
+                continue;
+            }
+            String key = keyPrefix + id;
+            LocalValue local = getLocal(key);
+            if (local != null) {
+                results[i] = local.getValue();
+                continue;
+            }
+            redisIndexes.add(i);
+            redisKeys.add(key);
+        }
+        if (redisKeys.isEmpty()) {
+            return castList(results, type);
+        }
+
+        // 一次MGET查询redis,未命中的id按顺序去重
+        List<byte[]> values = cacheRedisTemplate.opsForValue().multiGet(redisKeys);
+        Map<ID, List<Integer>> missIndexes = new LinkedHashMap<>();
+        for (int i = 0; i < redisKeys.size(); i++) {
+            int index = redisIndexes.get(i);
+            byte[] bytes = values == null ? null : values.get(i);
+            LocalValue cached = decodeAndCache(redisKeys.get(i), bytes, type);
+            if (cached != null) {
+                results[index] = cached.getValue();
+                continue;
+            }
+            missIndexes.computeIfAbsent(ids.get(index), k -> new ArrayList<>(1)).add(index);
+        }
+        if (missIndexes.isEmpty()) {
+            return castList(results, type);
+        }
+
+        // 一次批量查询数据库
+        Map<ID, R> loaded = batchLoader.apply(missIndexes.keySet());
+        if (loaded == null) {
+            loaded = Collections.emptyMap();
+        }
+        Map<byte[], byte[]> writeBack = new LinkedHashMap<>(missIndexes.size());
+        List<byte[]> nullKeys = new ArrayList<>();
+        for (Map.Entry<ID, List<Integer>> entry : missIndexes.entrySet()) {
+            String key = keyPrefix + entry.getKey();
+            R r = loaded.get(entry.getKey());
+            for (Integer index : entry.getValue()) {
+                results[index] = r;
+            }
+            byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+            if (r == null) {
+                nullKeys.add(rawKey);
+                putLocal(key, null, 0);
+            } else {
+                byte[] bytes = cacheCodec.encode(r);
+                writeBack.put(rawKey, bytes);
+                putLocal(key, r, bytes.length);
+            }
+        }
+
+        // 一次pipeline写回redis,空值使用较短的过期时间
+        Expiration nullExpiration = Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES);
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            RedisStringCommands commands = connection.stringCommands();
+            writeBack.forEach((rawKey, bytes) -> commands.set(rawKey, bytes,
+                    Expiration.milliseconds(jitterMillis(time, unit)), RedisStringCommands.SetOption.upsert()));
+            for (byte[] rawKey : nullKeys) {
+                commands.set(rawKey, EMPTY, nullExpiration, RedisStringCommands.SetOption.upsert());
+            }
+            return null;
+        });
+        return castList(results, type);
+    }
+
+    private static <R> List<R> castList(Object[] results, Class<R> type) {
+        List<R> list = new ArrayList<>(results.length);
+        for (Object result : results) {
+            list.add(type.cast(result));
+        }
+        return list;
+    }
+
+    private <R> RedisData<R> decodeRedisData(String key, byte[] bytes, Class<R> type) {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        try {
+            return cacheCodec.decodeRedisData(bytes, type);
+        } catch (RuntimeException e) {
+            log.warn("缓存数据解码失败,key:{}", key, e);
+            return null;
+        }
+    }
+
     /**
      * 互斥锁防止缓存击穿
      *
@@ -179,52 +826,258 @@ public class CacheClient {
      */
     public <R, ID> R queryWithMutex(
             String keyPrefix, ID id, Class<R> type, String lockKeyPrefix, Function<ID, R> dbFullback, Long time, TimeUnit unit) {
+        if (rejectedByBloomFilter(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
-        // 如果缓存中的数据不为空,则直接返回数据
-        if (StrUtil.isNotBlank(json)) {
-            return JSONUtil.toBean(json, type);
+        // 先查本地缓存
+        LocalValue local = getLocal(key);
+        if (local != null) {
+            return type.cast(local.getValue());
         }
-        if (json != null) {
-            //    json是空字符串,缓存穿透的时候存储的
-            return null;
+        LocalValue cached = decodeAndCache(key, cacheRedisTemplate.opsForValue().get(key), type);
+        // 如果缓存中有数据(包括缓存穿透时存储的空值),则直接返回数据
+        if (cached != null) {
+            return type.cast(cached.getValue());
         }
 
-        String lockKey = lockKeyPrefix + id;
-        R r;
-        try {
-            boolean lock = tryLock(lockKey);
-            while (!lock) {
+        // 同一个key的并发未命中合并为一次加载,只有leader去竞争redis的互斥锁
+        return singleFlight.execute(key, () -> loadWithMutex(key, lockKeyPrefix + id,
+                () -> decodeAndCache(key, cacheRedisTemplate.opsForValue().get(key), type),
+                () -> dbFullback.apply(id),
+                r -> {
+                    if (r == null) {
+                        // 缓存空值防止缓存穿透
+                        cacheRedisTemplate.opsForValue().set(key, EMPTY, CACHE_NULL_TTL, TimeUnit.MINUTES);
+                    } else {
+                        set(key, r, time, unit);
+                    }
+                }));
+    }
+
+    /**
+     * 获取互斥锁后查询数据库重建缓存。
+     * 获取锁失败说明其他节点正在重建,等待其重建完成的通知后再读取redis,而不是睡眠轮询
+     *
+     * @param reader 读取redis,返回null表示未命中
+     * @param loader 查询数据库
+     * @param writer 写入redis
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R loadWithMutex(
+            String key, String lockKey, Supplier<LocalValue> reader, Supplier<R> loader, Consumer<R> writer) {
+        while (true) {
+            // 先注册等待,避免错过在tryLock和await之间发出的通知
+            CompletableFuture<Void> loaded = loadedWaiters.computeIfAbsent(key, k -> new CompletableFuture<>());
+            if (tryLock(lockKey)) {
+                loadedWaiters.remove(key, loaded);
                 try {
-                    Thread.sleep(50);
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+                    // DoubleCheck
+                    LocalValue cached = reader.get();
+                    if (cached != null) {
+                        return (R) cached.getValue();
+                    }
+                    R r = loader.get();
+                    writer.accept(r);
+                    // 通知其他节点上等待的线程
+                    stringRedisTemplate.convertAndSend(CACHE_LOADED_CHANNEL, key);
+                    return r;
+                } finally {
+                    unLock(lockKey);
                 }
-                lock = tryLock(lockKey);
             }
-            // DoubleCheck
-            json = stringRedisTemplate.opsForValue().get(key);
-            if (StrUtil.isNotBlank(json)) {
-                return JSONUtil.toBean(json, type);
+            // 其他节点持有锁,可能已经重建完成
+            LocalValue cached = reader.get();
+            if (cached != null) {
+                loadedWaiters.remove(key, loaded);
+                return (R) cached.getValue();
             }
-            if (json != null) {
-                //    json是空字符串,缓存穿透的时候存储的
-                return null;
+            try {
+                // 等待重建完成的通知,超时说明持有锁的节点可能已经宕机,锁过期后重新竞争
+                loaded.get(LOCK_SHOP_TTL, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                log.warn("等待缓存重建超时,重新尝试获取锁,key:{}", key);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e);
             }
-            r = dbFullback.apply(id);
-            if (r == null) {
-                // 缓存空值防止缓存穿透
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
+        }
+    }
+
+    /**
+     * 收到其他节点缓存重建完成的通知,唤醒本节点等待的线程
+     *
+     * @param key 缓存key
+     */
+    public void onLoaded(String key) {
+        CompletableFuture<Void> loaded = loadedWaiters.remove(key);
+        if (loaded != null) {
+            loaded.complete(null);
+        }
+    }
+
+    /**
+     * 概率提前刷新(XFetch)解决缓存击穿
+     * <p>
+     * 缓存中保存数据、过期时间和最近一次重建的耗时delta,每次读取时以
+     * now - delta * beta * ln(random) >= expireTime 的概率决定是否提前重建:
+     * 越接近过期、重建越慢,提前重建的概率越大,通常在过期前就有一个请求完成了重建,
+     * 不需要后台刷新线程,也不会在过期的瞬间出现大量未命中。
+     * 提前重建时只有获取到互斥锁的请求去查询数据库,其他请求继续返回旧数据
+     *
+     * @param keyPrefix     key 前缀
+     * @param id            查询数据的id
+     * @param type          查询数据的类型
+     * @param lockKeyPrefix 锁的key前缀
+     * @param dbFullback    查询数据库的回调函数
+     * @param time          缓存过期时间
+     * @param unit          过期时间单位
+     * @param <R>           数据类型
+     * @param <ID>          id的类型
+     * @return 返回查询的数据
+     */
+    @SuppressWarnings("unchecked")
+    public <R, ID> R queryWithEarlyRefresh(
+            String keyPrefix, ID id, Class<R> type, String lockKeyPrefix, Function<ID, R> dbFullback, Long time, TimeUnit unit) {
+        if (rejectedByBloomFilter(keyPrefix, id)) {
+            return null;
+        }
+        String key = keyPrefix + id;
+        RedisData<R> redisData;
+        LocalValue local = getLocal(key);
+        if (local != null) {
+            redisData = (RedisData<R>) local.getValue();
+        } else {
+            byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+            if (bytes != null && bytes.length == 0) {
+                // 缓存穿透时存储的空值
+                redisData = nullRedisData();
+                putLocal(key, redisData, 0);
+            } else {
+                redisData = decodeRedisData(key, bytes, type);
+                if (redisData != null && redisData.getExpireTime() != null) {
+                    putLocal(key, redisData, bytes.length);
+                }
             }
-            set(key, r, time, unit);
+        }
+
+        long now = System.currentTimeMillis();
+        if (redisData == null || redisData.getExpireTime() == null || now >= toMillis(redisData.getExpireTime())) {
+            // 未命中或已过期,同一个key的并发请求合并为一次重建,只有leader去竞争redis的互斥锁,
+            // 其他节点等待重建完成的通知后读取redis
+            return singleFlight.execute(key, () -> loadWithMutex(key, lockKeyPrefix + id,
+                    () -> readFresh(key, type),
+                    () -> refresh(key, id, dbFullback, time, unit),
+                    r -> {
+                        // refresh中已经写入redis
+                    }));
+        }
+        if (!shouldRefreshEarly(redisData, now)) {
+            return redisData.getData();
+        }
+        // 提前重建,获取锁失败说明其他请求正在重建,直接返回旧数据
+        String lockKey = lockKeyPrefix + id;
+        if (!tryLock(lockKey)) {
+            return redisData.getData();
+        }
+        try {
+            R r = singleFlight.execute(key, () -> refresh(key, id, dbFullback, time, unit));
+            // 唤醒其他节点上因为已过期而等待这把锁的线程
+            stringRedisTemplate.convertAndSend(CACHE_LOADED_CHANNEL, key);
+            return r;
         } finally {
             unLock(lockKey);
         }
+    }
+
+    /**
+     * 读取redis中未过期的数据,用于获取锁前后的检查
+     *
+     * @return 未命中或已过期时返回null
+     */
+    private <R> LocalValue readFresh(String key, Class<R> type) {
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        if (bytes == null) {
+            return null;
+        }
+        if (bytes.length == 0) {
+            // 缓存穿透时存储的空值
+            putLocal(key, nullRedisData(), 0);
+            return new LocalValue(null, 0);
+        }
+        RedisData<R> redisData = decodeRedisData(key, bytes, type);
+        if (redisData == null || redisData.getExpireTime() == null
+                || System.currentTimeMillis() >= toMillis(redisData.getExpireTime())) {
+            return null;
+        }
+        putLocal(key, redisData, bytes.length);
+        return new LocalValue(redisData.getData(), bytes.length);
+    }
+
+    private boolean shouldRefreshEarly(RedisData<?> redisData, long now) {
+        Long delta = redisData.getDelta();
+        if (delta == null || delta <= 0) {
+            return false;
+        }
+        double beta = cacheProperties.getRefresh().getBeta();
+        // ln(random) <= 0,所以 gap >= 0
+        double gap = -delta * beta * Math.log(ThreadLocalRandom.current().nextDouble(Double.MIN_VALUE, 1.0));
+        return now + gap >= toMillis(redisData.getExpireTime());
+    }
 
+    /**
+     * 查询数据库重建缓存,并记录重建耗时
+     */
+    private <R, ID> R refresh(String key, ID id, Function<ID, R> dbFullback, Long time, TimeUnit unit) {
+        long start = System.currentTimeMillis();
+        R r = dbFullback.apply(id);
+        long end = System.currentTimeMillis();
+        if (r == null) {
+            // 缓存空值防止缓存穿透
+            cacheRedisTemplate.opsForValue().set(key, EMPTY, CACHE_NULL_TTL, TimeUnit.MINUTES);
+            putLocal(key, nullRedisData(), 0);
+            return null;
+        }
+        long ttl = jitterMillis(time, unit);
+        RedisData<R> redisData = new RedisData<>();
+        redisData.setData(r);
+        redisData.setExpireTime(LocalDateTime.now().plusNanos(TimeUnit.MILLISECONDS.toNanos(ttl)));
+        redisData.setDelta(end - start);
+        byte[] bytes = cacheCodec.encodeRedisData(redisData);
+        // redis中的过期时间与逻辑过期时间一致
+        cacheRedisTemplate.opsForValue().set(key, bytes, ttl, TimeUnit.MILLISECONDS);
+        putLocal(key, redisData, bytes.length);
         return r;
     }
 
+    /**
+     * 本地缓存中表示空值的数据,在空值的过期时间内不会重建
+     */
+    private static <R> RedisData<R> nullRedisData() {
+        RedisData<R> redisData = new RedisData<>();
+        redisData.setExpireTime(LocalDateTime.now().plusMinutes(CACHE_NULL_TTL));
+        return redisData;
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 过期时间加上随机抖动
+     *
+     * @return 毫秒
+     */
+    private long jitterMillis(Long time, TimeUnit unit) {
+        long millis = unit.toMillis(time);
+        double jitter = cacheProperties.getRefresh().getTtlJitter();
+        if (jitter <= 0) {
+            return millis;
+        }
+        return millis + (long) (millis * jitter * ThreadLocalRandom.current().nextDouble());
+    }
 
     // 获取锁
     public boolean tryLock(String key) {
@@ -239,4 +1092,14 @@ public class CacheClient {
         stringRedisTemplate.delete(key);
     }
 
+    /**
+     * 本地缓存的值,value为null表示缓存的空值
+     */
+    @Getter
+    @AllArgsConstructor
+    private static class LocalValue {
+        private final Object value;
+        private final int weight;
+    }
+
 }
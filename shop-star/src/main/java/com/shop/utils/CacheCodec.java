@@ -0,0 +1,75 @@
+package com.shop.utils;
+
+import java.util.List;
+
+/**
+ * 缓存值的编解码器
+ * <p>
+ * {@link CacheClient}通过它把对象写入redis以及从redis读出,可以替换成不同的存储格式
+ *
+ * @author humeng
+ */
+public interface CacheCodec {
+
+    /**
+     * 是否可以编码该对象
+     *
+     * @param value 对象,可以是实体、实体的List或{@link RedisData}
+     * @return true:可以编码
+     */
+    boolean canEncode(Object value);
+
+    /**
+     * 是否可以解码该数据,用于兼容读取多种格式
+     *
+     * @param bytes redis中的数据
+     * @return true:是本编解码器写入的格式
+     */
+    boolean canDecode(byte[] bytes);
+
+    /**
+     * 编码对象或对象的List
+     *
+     * @param value 对象
+     * @return 字节数组
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 解码对象
+     *
+     * @param bytes 字节数组
+     * @param type  对象类型
+     * @param <T>   对象类型
+     * @return 对象
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 解码对象的List
+     *
+     * @param bytes 字节数组
+     * @param type  元素类型
+     * @param <T>   元素类型
+     * @return List
+     */
+    <T> List<T> decodeList(byte[] bytes, Class<T> type);
+
+    /**
+     * 编码带逻辑过期时间的数据
+     *
+     * @param redisData 数据
+     * @return 字节数组
+     */
+    byte[] encodeRedisData(RedisData<?> redisData);
+
+    /**
+     * 解码带逻辑过期时间的数据
+     *
+     * @param bytes 字节数组
+     * @param type  数据类型
+     * @param <T>   数据类型
+     * @return 数据
+     */
+    <T> RedisData<T> decodeRedisData(byte[] bytes, Class<T> type);
+}
@@ -0,0 +1,205 @@
+package com.shop.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.shop.config.CacheProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 逻辑过期缓存的重建线程池
+ * <p>
+ * 1. 同一个key同时只会有一个重建任务(排队中或执行中),不依赖redis的互斥锁
+ * <p>
+ * 2. 等待队列有界,队列满时拒绝新任务,调用方继续返回旧数据
+ * <p>
+ * 3. 等待队列按key的访问次数排序,越热的key越先重建
+ * <p>
+ * 4. 应用关闭时等待已提交的任务执行完成,超时后中断
+ *
+ * @author humeng
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private ThreadPoolExecutor executor;
+
+    /**
+     * 排队中或执行中的key
+     */
+    private final ConcurrentHashMap<String, Boolean> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * 等待队列中的任务数,PriorityBlockingQueue本身是无界的,由它限制队列长度
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * 任务提交的顺序,热度相同时先提交的先执行
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * key的访问次数,只保留最近访问过的key
+     */
+    private final Cache<String, AtomicLong> hits = Caffeine.newBuilder()
+            .maximumSize(100000)
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .build();
+
+    private Counter submittedCounter;
+    private Counter dedupedCounter;
+    private Counter rejectedCounter;
+    private Counter failedCounter;
+
+    @PostConstruct
+    private void init() {
+        CacheProperties.Rebuild rebuild = cacheProperties.getRebuild();
+        AtomicInteger threadIndex = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread thread = new Thread(r, "cache-rebuild-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        executor = new ThreadPoolExecutor(rebuild.getParallelism(), rebuild.getParallelism(),
+                0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), threadFactory);
+
+        submittedCounter = Counter.builder("cache.rebuild.submitted")
+                .description("提交的缓存重建任务数")
+                .register(meterRegistry);
+        dedupedCounter = Counter.builder("cache.rebuild.deduplicated")
+                .description("同一个key已有重建任务而被合并的次数")
+                .register(meterRegistry);
+        rejectedCounter = Counter.builder("cache.rebuild.rejected")
+                .description("队列已满被拒绝的重建任务数")
+                .register(meterRegistry);
+        failedCounter = Counter.builder("cache.rebuild.failed")
+                .description("执行失败的重建任务数")
+                .register(meterRegistry);
+        Gauge.builder("cache.rebuild.queued", queued, AtomicInteger::get)
+                .description("等待中的重建任务数")
+                .register(meterRegistry);
+        Gauge.builder("cache.rebuild.active", executor, ThreadPoolExecutor::getActiveCount)
+                .description("执行中的重建任务数")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 记录一次key的访问,用于决定重建的优先级
+     *
+     * @param key 缓存key
+     */
+    public void touch(String key) {
+        hits.get(key, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * 提交重建任务
+     *
+     * @param key  缓存key
+     * @param task 重建任务
+     * @return false:该key已有重建任务、队列已满或线程池已关闭,任务没有被执行
+     */
+    public boolean submit(String key, Runnable task) {
+        if (inFlight.putIfAbsent(key, Boolean.TRUE) != null) {
+            dedupedCounter.increment();
+            return false;
+        }
+        if (queued.incrementAndGet() > cacheProperties.getRebuild().getQueueCapacity()) {
+            reject(key);
+            return false;
+        }
+        AtomicLong hit = hits.getIfPresent(key);
+        try {
+            executor.execute(new RebuildTask(key, hit == null ? 0L : hit.get(), sequence.incrementAndGet(), task));
+        } catch (RejectedExecutionException e) {
+            // 线程池已关闭
+            reject(key);
+            return false;
+        }
+        submittedCounter.increment();
+        return true;
+    }
+
+    private void reject(String key) {
+        queued.decrementAndGet();
+        inFlight.remove(key);
+        rejectedCounter.increment();
+    }
+
+    /**
+     * 关闭时不再接收新任务,等待队列中的任务执行完成
+     */
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+        long drainSeconds = cacheProperties.getRebuild().getDrainSeconds();
+        try {
+            if (!executor.awaitTermination(drainSeconds, TimeUnit.SECONDS)) {
+                log.warn("缓存重建任务在{}秒内没有执行完成,剩余{}个任务被丢弃",
+                        drainSeconds, executor.shutdownNow().size());
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class RebuildTask implements Runnable, Comparable<RebuildTask> {
+        private final String key;
+        private final long hotness;
+        private final long seq;
+        private final Runnable task;
+
+        private RebuildTask(String key, long hotness, long seq, Runnable task) {
+            this.key = key;
+            this.hotness = hotness;
+            this.seq = seq;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            queued.decrementAndGet();
+            // 重新统计重建之后的访问次数
+            hits.invalidate(key);
+            try {
+                task.run();
+            } catch (Exception e) {
+                failedCounter.increment();
+                log.error("缓存重建失败,key:{}", key, e);
+            } finally {
+                inFlight.remove(key);
+            }
+        }
+
+        @Override
+        public int compareTo(RebuildTask other) {
+            // 热度高的在前,相同时先提交的在前
+            int c = Long.compare(other.hotness, hotness);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.shop.utils;
+
+import cn.hutool.core.collection.CollUtil;
+import com.shop.config.CacheProperties;
+import com.shop.entity.Shop;
+import com.shop.entity.ShopType;
+import com.shop.mapper.ShopMapper;
+import com.shop.service.IShopTypeService;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.shop.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.shop.utils.RedisConstants.CACHE_SHOP_TTL;
+import static com.shop.utils.RedisConstants.CACHE_SHOP_TYPE_KEY;
+import static com.shop.utils.RedisConstants.SHOP_HOT_KEY;
+
+/**
+ * 缓存预热
+ * <p>
+ * 1. 统计存在的店铺的访问次数,定时累加到redis的zset中,只保留访问次数最多的一部分店铺。
+ * 本地统计的店铺数有上限,避免扫描大量随机id时无限增长
+ * <p>
+ * 2. 应用启动时并行分批查询访问次数最多的N个店铺,用pipeline写入缓存,同时预热店铺类型列表。
+ * 预热在ApplicationRunner中同步执行,完成或超时之后应用才会进入可以接收流量的状态(readiness)
+ *
+ * @author humeng
+ */
+@Slf4j
+@Component
+public class CacheWarmer implements ApplicationRunner {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    /**
+     * 本节点还没有累加到redis的店铺访问次数
+     */
+    private final ConcurrentHashMap<Long, Long> shopHits = new ConcurrentHashMap<>();
+
+    private Timer warmUpTimer;
+
+    /**
+     * 最近一次预热成功写入缓存的店铺数占候选店铺数的比例
+     */
+    private volatile double coverage;
+
+    @PostConstruct
+    private void initMetrics() {
+        warmUpTimer = Timer.builder("cache.warmup.duration")
+                .description("缓存预热耗时")
+                .register(meterRegistry);
+        Gauge.builder("cache.warmup.coverage", this, warmer -> warmer.coverage)
+                .description("预热的店铺数占候选店铺数的比例")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 记录一次店铺访问,只应该在店铺存在时调用
+     *
+     * @param shopId 店铺id
+     */
+    public void recordShopHit(Long shopId) {
+        if (shopHits.size() >= cacheProperties.getWarmUp().getHitsMaxSize() && !shopHits.containsKey(shopId)) {
+            return;
+        }
+        // merge和remove都是原子操作,累加时取走的次数不会丢失
+        shopHits.merge(shopId, 1L, Long::sum);
+    }
+
+    /**
+     * 定时把本节点的访问次数累加到redis,并裁剪掉访问次数较少的店铺
+     */
+    @Scheduled(fixedDelay = 60000, initialDelay = 60000)
+    public void flushShopHits() {
+        if (shopHits.isEmpty()) {
+            return;
+        }
+        Map<Long, Long> snapshot = new HashMap<>(shopHits.size());
+        for (Long shopId : shopHits.keySet()) {
+            Long hits = shopHits.remove(shopId);
+            if (hits != null) {
+                snapshot.put(shopId, hits);
+            }
+        }
+        long recordSize = cacheProperties.getWarmUp().getRecordSize();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            snapshot.forEach((shopId, hits) -> conn.zIncrBy(SHOP_HOT_KEY, hits, shopId.toString()));
+            // 只保留访问次数最多的recordSize个店铺
+            conn.zRemRange(SHOP_HOT_KEY, 0, -recordSize - 1);
+            return null;
+        });
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        CacheProperties.WarmUp warmUp = cacheProperties.getWarmUp();
+        if (!warmUp.isEnabled()) {
+            return;
+        }
+        long start = System.nanoTime();
+
+        // 预热店铺类型
+        try {
+            List<ShopType> typeList = shopTypeService.listOrderBySort();
+            if (!typeList.isEmpty()) {
+                cacheClient.set(CACHE_SHOP_TYPE_KEY, typeList);
+            }
+        } catch (Exception e) {
+            log.warn("预热店铺类型失败", e);
+        }
+
+        // 预热访问次数最多的店铺
+        Set<String> hotIds = stringRedisTemplate.opsForZSet().reverseRange(SHOP_HOT_KEY, 0, warmUp.getTopN() - 1);
+        List<Long> shopIds = hotIds == null ? CollUtil.newArrayList()
+                : hotIds.stream().map(Long::valueOf).collect(Collectors.toList());
+        AtomicInteger warmed = new AtomicInteger();
+        if (!shopIds.isEmpty()) {
+            AtomicInteger threadIndex = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(warmUp.getParallelism(),
+                    r -> new Thread(r, "cache-warmup-" + threadIndex.incrementAndGet()));
+            for (List<Long> batch : CollUtil.split(shopIds, warmUp.getBatchSize())) {
+                executor.execute(() -> {
+                    try {
+                        Map<Long, Shop> shops = shopMapper.selectBatchIds(batch).stream()
+                                .collect(Collectors.toMap(Shop::getId, Function.identity()));
+                        cacheClient.setBatch(CACHE_SHOP_KEY, shops, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                        warmed.addAndGet(shops.size());
+                    } catch (Exception e) {
+                        log.warn("预热店铺缓存失败,ids:{}", batch, e);
+                    }
+                });
+            }
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(warmUp.getTimeoutSeconds(), TimeUnit.SECONDS)) {
+                    log.warn("缓存预热超过{}秒没有完成,放弃剩余的批次", warmUp.getTimeoutSeconds());
+                    executor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        warmUpTimer.record(elapsed, TimeUnit.NANOSECONDS);
+        coverage = shopIds.isEmpty() ? 1.0 : (double) warmed.get() / shopIds.size();
+        log.info("缓存预热完成,耗时{}ms,店铺{}/{},覆盖率{}%", TimeUnit.NANOSECONDS.toMillis(elapsed),
+                warmed.get(), shopIds.size(), String.format("%.1f", coverage * 100));
+    }
+}
@@ -0,0 +1,325 @@
+package com.shop.utils;
+
+import com.shop.config.BlogProperties;
+import com.shop.entity.Follow;
+import com.shop.service.IFollowService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.shop.utils.RedisConstants.BLOG_POST_DLQ_KEY;
+import static com.shop.utils.RedisConstants.BLOG_POST_STREAM_KEY;
+import static com.shop.utils.RedisConstants.FEED_BIG_AUTHORS_KEY;
+import static com.shop.utils.RedisConstants.FEED_KEY;
+import static com.shop.utils.RedisConstants.FEED_OUTBOX_KEY;
+
+/**
+ * 发布笔记后推送到粉丝的收件箱
+ * <p>
+ * 发布笔记时只写入stream消息队列,由本类的线程池消费:按id分页查询粉丝,
+ * 每页用一次pipeline写入所有粉丝的收件箱并裁剪到最大长度,全部推送完成后才确认消息。
+ * 节点宕机时未确认的消息由其他节点认领后重新推送,重复写入收件箱是幂等的。
+ * 推送失败的消息留在pending-list中重试,投递次数达到上限后移入死信队列,不会阻塞后面的消息
+ * <p>
+ * 粉丝数达到阈值的作者(大V)只写入自己的发件箱,并加入大V集合,读取关注的笔记时再合并关注的大V的发件箱。
+ * 作者一旦成为大V就一直按大V处理,避免已经写入发件箱的笔记在粉丝的关注列表中消失
+ *
+ * @author humeng
+ */
+@Slf4j
+@Component
+public class FeedFanoutWorker {
+
+    private static final String GROUP_NAME = "g1";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private BlogProperties blogProperties;
+
+    @Resource
+    private IFollowService followService;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private StreamConsumerSupport streamConsumerSupport;
+
+    private ExecutorService executor;
+
+    private volatile boolean running = true;
+
+    private String consumerPrefix;
+
+    private final AtomicLong pendingCount = new AtomicLong();
+
+    private final AtomicLong lagMillis = new AtomicLong();
+
+    private Counter deliveredCounter;
+
+    private Counter outboxCounter;
+
+    private Counter deadLetterCounter;
+
+    private Timer fanoutTimer;
+
+    @PostConstruct
+    private void init() {
+        streamConsumerSupport.createGroupIfAbsent(BLOG_POST_STREAM_KEY, GROUP_NAME);
+        consumerPrefix = StreamConsumerSupport.consumerPrefix();
+
+        deliveredCounter = Counter.builder("feed.fanout.delivered")
+                .description("写入粉丝收件箱的笔记数")
+                .register(meterRegistry);
+        outboxCounter = Counter.builder("feed.fanout.outbox")
+                .description("大V发布的只写入发件箱的笔记数")
+                .register(meterRegistry);
+        deadLetterCounter = Counter.builder("feed.fanout.dead-letter")
+                .description("超过最大投递次数被移入死信队列的发布消息数")
+                .register(meterRegistry);
+        fanoutTimer = Timer.builder("feed.fanout.duration")
+                .description("一篇笔记推送到所有粉丝的耗时")
+                .register(meterRegistry);
+        Gauge.builder("feed.fanout.pending", pendingCount, AtomicLong::get)
+                .description("已投递未确认的发布消息数")
+                .register(meterRegistry);
+        Gauge.builder("feed.fanout.lag", lagMillis, AtomicLong::get)
+                .description("最新的发布消息与最近投递的消息之间的时间差(毫秒)")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+
+        int workers = blogProperties.getFanout().getWorkers();
+        AtomicInteger threadIndex = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(workers,
+                r -> new Thread(r, "feed-fanout-" + threadIndex.incrementAndGet()));
+        for (int i = 0; i < workers; i++) {
+            String consumerName = consumerPrefix + "-" + i;
+            executor.submit(() -> consume(consumerName));
+        }
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        running = false;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            return;
+        }
+        for (int i = 0; i < blogProperties.getFanout().getWorkers(); i++) {
+            streamConsumerSupport.removeConsumerIfIdle(BLOG_POST_STREAM_KEY, GROUP_NAME, consumerPrefix + "-" + i);
+        }
+    }
+
+    /**
+     * 发布笔记,写入消息队列后立即返回
+     *
+     * @param blogId   笔记id
+     * @param authorId 作者id
+     * @param time     发布时间(毫秒),作为收件箱中的分数
+     */
+    public void publish(Long blogId, Long authorId, long time) {
+        Map<String, String> fields = new HashMap<>();
+        fields.put("blogId", blogId.toString());
+        fields.put("authorId", authorId.toString());
+        fields.put("time", String.valueOf(time));
+        stringRedisTemplate.opsForStream().add(StreamRecords.string(fields).withStreamKey(BLOG_POST_STREAM_KEY));
+    }
+
+    private void consume(String consumerName) {
+        BlogProperties.Fanout fanout = blogProperties.getFanout();
+        // 先处理本消费者上次没有确认的消息,再读取新消息
+        boolean pendingPhase = true;
+        while (running) {
+            try {
+                StreamReadOptions options = StreamReadOptions.empty().count(fanout.getReadCount());
+                if (!pendingPhase) {
+                    options = options.block(Duration.ofMillis(fanout.getBlockMillis()));
+                }
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(GROUP_NAME, consumerName), options,
+                        StreamOffset.create(BLOG_POST_STREAM_KEY,
+                                pendingPhase ? ReadOffset.from("0") : ReadOffset.lastConsumed()));
+                if (list == null || list.isEmpty()) {
+                    pendingPhase = false;
+                    continue;
+                }
+                if (!handleMessages(list)) {
+                    // 有消息推送失败,等待一段时间再重新读取pending-list,每次读取都会增加消息的投递次数
+                    pendingPhase = true;
+                    Thread.sleep(fanout.getRetryBackoffMillis());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("{}读取发布消息异常", consumerName, e);
+                pendingPhase = true;
+                try {
+                    Thread.sleep(fanout.getRetryBackoffMillis());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 逐条推送,一条失败不影响同一批的其他消息
+     *
+     * @return false:有消息推送失败,留在pending-list中
+     */
+    private boolean handleMessages(List<MapRecord<String, Object, Object>> messages) {
+        boolean allHandled = true;
+        for (MapRecord<String, Object, Object> message : messages) {
+            try {
+                handle(message);
+            } catch (Exception e) {
+                log.error("推送笔记异常,id:{}", message.getId(), e);
+                // 超过最大投递次数时移入死信队列,否则留在pending-list中重试
+                if (streamConsumerSupport.deadLetterIfExhausted(BLOG_POST_STREAM_KEY, GROUP_NAME, message,
+                        blogProperties.getFanout().getMaxDeliveries(), BLOG_POST_DLQ_KEY, e)) {
+                    deadLetterCounter.increment();
+                } else {
+                    allHandled = false;
+                }
+            }
+        }
+        return allHandled;
+    }
+
+    /**
+     * 推送一篇笔记到作者的所有粉丝,完成后确认消息
+     */
+    private void handle(MapRecord<String, Object, Object> message) {
+        Map<Object, Object> value = message.getValue();
+        Long blogId = Long.valueOf(value.get("blogId").toString());
+        Long authorId = Long.valueOf(value.get("authorId").toString());
+        String time = value.get("time").toString();
+        long start = System.nanoTime();
+        long fans = fanout(blogId.toString(), authorId, Double.parseDouble(time));
+        fanoutTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        stringRedisTemplate.opsForStream().acknowledge(BLOG_POST_STREAM_KEY, GROUP_NAME, message.getId());
+        log.debug("笔记{}推送到{}个粉丝", blogId, fans);
+    }
+
+    private long fanout(String blogId, Long authorId, double score) {
+        BlogProperties.Fanout fanout = blogProperties.getFanout();
+        long inboxMaxSize = fanout.getInboxMaxSize();
+        if (isBigAuthor(authorId)) {
+            String outboxKey = FEED_OUTBOX_KEY + authorId;
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                conn.zAdd(outboxKey, score, blogId);
+                conn.zRemRange(outboxKey, 0, -inboxMaxSize - 1);
+                return null;
+            });
+            outboxCounter.increment();
+            return 0;
+        }
+        long lastId = 0;
+        long total = 0;
+        while (true) {
+            // 按主键分页,使用索引(follow_user_id, id),不会随页数增加变慢
+            List<Follow> page = followService.query()
+                    .select("id", "user_id")
+                    .eq("follow_user_id", authorId)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + fanout.getBatchSize())
+                    .list();
+            if (page.isEmpty()) {
+                return total;
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Follow follow : page) {
+                    String key = FEED_KEY + follow.getUserId();
+                    conn.zAdd(key, score, blogId);
+                    // 只保留最新的inboxMaxSize篇笔记
+                    conn.zRemRange(key, 0, -inboxMaxSize - 1);
+                }
+                return null;
+            });
+            deliveredCounter.increment(page.size());
+            total += page.size();
+            if (page.size() < fanout.getBatchSize()) {
+                return total;
+            }
+            lastId = page.get(page.size() - 1).getId();
+        }
+    }
+
+    /**
+     * 是否是大V:已经在大V集合中,或者粉丝数达到阈值
+     */
+    private boolean isBigAuthor(Long authorId) {
+        if (Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(FEED_BIG_AUTHORS_KEY, authorId.toString()))) {
+            return true;
+        }
+        int fans = followService.query().eq("follow_user_id", authorId).count();
+        if (fans < blogProperties.getFanout().getBigAuthorThreshold()) {
+            return false;
+        }
+        stringRedisTemplate.opsForSet().add(FEED_BIG_AUTHORS_KEY, authorId.toString());
+        log.info("作者{}的粉丝数{}达到阈值,之后发布的笔记只写入发件箱", authorId, fans);
+        return true;
+    }
+
+    /**
+     * 认领长时间没有确认的消息(消费者宕机),由本节点重新推送
+     */
+    @Scheduled(fixedDelayString = "${shop.blog.fanout.claim-idle-millis:60000}", initialDelay = 10000)
+    public void claimIdlePending() {
+        List<MapRecord<String, Object, Object>> claimed = streamConsumerSupport.claimIdle(BLOG_POST_STREAM_KEY,
+                GROUP_NAME, consumerPrefix + "-claimer", blogProperties.getFanout().getClaimIdleMillis());
+        if (!claimed.isEmpty()) {
+            handleMessages(claimed);
+        }
+    }
+
+    /**
+     * 定时采集推送队列的积压指标
+     */
+    @Scheduled(fixedDelay = 5000, initialDelay = 5000)
+    public void collectMetrics() {
+        long[] backlog = streamConsumerSupport.backlog(Collections.singletonList(BLOG_POST_STREAM_KEY), GROUP_NAME);
+        pendingCount.set(backlog[0]);
+        lagMillis.set(backlog[1]);
+    }
+}
@@ -0,0 +1,221 @@
+package com.shop.utils;
+
+import com.shop.config.CacheProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 热点key探测
+ * <p>
+ * 使用滑动窗口的Count-Min Sketch估算key最近一段时间的访问次数:每个窗口一个sketch,
+ * 定时轮换并清空最旧的窗口,估算值为所有窗口之和。
+ * 估算值超过阈值的key进入热点集合,热点集合只保留访问次数最多的topK个,
+ * 每次轮换窗口时重新估算,低于阈值的key移出热点集合
+ *
+ * @author humeng
+ */
+@Component
+public class HotKeyDetector {
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private CountMinSketch[] windows;
+
+    private volatile int current;
+
+    /**
+     * 当前的热点key及其估算的访问次数
+     */
+    private final ConcurrentHashMap<String, Long> hotKeys = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        CacheProperties.HotKey hotKey = cacheProperties.getHotKey();
+        windows = new CountMinSketch[hotKey.getWindows()];
+        for (int i = 0; i < windows.length; i++) {
+            windows[i] = new CountMinSketch(hotKey.getDepth(), hotKey.getWidth());
+        }
+        Gauge.builder("cache.hotkey.count", hotKeys, Map::size)
+                .description("当前的热点key数量")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 记录一次key的访问
+     *
+     * @param key redis的key
+     * @return 是否是热点key
+     */
+    public boolean record(String key) {
+        CacheProperties.HotKey hotKey = cacheProperties.getHotKey();
+        if (!hotKey.isEnabled()) {
+            return false;
+        }
+        // 按采样率记录,每次采样计为sampleEvery次访问
+        int sampleEvery = hotKey.getSampleEvery();
+        if (sampleEvery > 1 && ThreadLocalRandom.current().nextInt(sampleEvery) != 0) {
+            return hotKeys.containsKey(key);
+        }
+        long hash = hash(key);
+        windows[current].add(hash, Math.max(sampleEvery, 1));
+        long estimate = estimate(hash);
+        if (estimate < hotKey.getThreshold()) {
+            return hotKeys.containsKey(key);
+        }
+        hotKeys.put(key, estimate);
+        if (hotKeys.size() > hotKey.getTopK()) {
+            trimTopK(hotKey.getTopK());
+        }
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 是否是热点key
+     *
+     * @param key redis的key
+     * @return true:热点key
+     */
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 当前的热点key,按访问次数从大到小排序
+     *
+     * @return 热点key列表
+     */
+    public List<HotKey> hotKeys() {
+        List<HotKey> list = new ArrayList<>(hotKeys.size());
+        hotKeys.forEach((key, count) -> list.add(new HotKey(key, count)));
+        list.sort((o1, o2) -> Long.compare(o2.getCount(), o1.getCount()));
+        return list;
+    }
+
+    /**
+     * 轮换窗口,清空最旧的窗口,并重新计算热点集合
+     */
+    @Scheduled(fixedRateString = "${shop.cache.hot-key.window-millis:10000}")
+    public void rotate() {
+        int next = (current + 1) % windows.length;
+        windows[next].clear();
+        current = next;
+
+        long threshold = cacheProperties.getHotKey().getThreshold();
+        for (String key : hotKeys.keySet()) {
+            long estimate = estimate(hash(key));
+            if (estimate < threshold) {
+                hotKeys.remove(key);
+            } else {
+                hotKeys.put(key, estimate);
+            }
+        }
+    }
+
+    /**
+     * 只保留访问次数最多的topK个key
+     */
+    private synchronized void trimTopK(int topK) {
+        int overflow = hotKeys.size() - topK;
+        if (overflow <= 0) {
+            return;
+        }
+        // 大顶堆保留访问次数最少的overflow个key
+        PriorityQueue<Map.Entry<String, Long>> heap =
+                new PriorityQueue<>((o1, o2) -> Long.compare(o2.getValue(), o1.getValue()));
+        for (Map.Entry<String, Long> entry : hotKeys.entrySet()) {
+            heap.offer(entry);
+            if (heap.size() > overflow) {
+                heap.poll();
+            }
+        }
+        heap.forEach(entry -> hotKeys.remove(entry.getKey(), entry.getValue()));
+    }
+
+    private long estimate(long hash) {
+        long sum = 0;
+        for (CountMinSketch window : windows) {
+            sum += window.estimate(hash);
+        }
+        return sum;
+    }
+
+    private static long hash(String key) {
+        // String.hashCode 扩展到64位并打散
+        long h = key.hashCode() * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        h *= 0xD6E8FEB86659FD93L;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class HotKey {
+        private String key;
+        /**
+         * 最近一个滑动窗口内估算的访问次数
+         */
+        private long count;
+    }
+
+    /**
+     * Count-Min Sketch,depth行width列的计数器,估算值为各行计数器的最小值,只会高估不会低估
+     */
+    private static class CountMinSketch {
+        private final int depth;
+        private final int width;
+        private final AtomicLongArray table;
+
+        private CountMinSketch(int depth, int width) {
+            this.depth = depth;
+            this.width = width;
+            this.table = new AtomicLongArray(depth * width);
+        }
+
+        private void add(long hash, long count) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < depth; i++) {
+                table.addAndGet(i * width + index(h1 + i * h2), count);
+            }
+        }
+
+        private long estimate(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < depth; i++) {
+                min = Math.min(min, table.get(i * width + index(h1 + i * h2)));
+            }
+            return min;
+        }
+
+        private int index(int h) {
+            return (h & Integer.MAX_VALUE) % width;
+        }
+
+        private void clear() {
+            for (int i = 0; i < table.length(); i++) {
+                table.set(i, 0);
+            }
+        }
+    }
+}
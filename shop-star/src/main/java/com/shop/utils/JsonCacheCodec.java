@@ -0,0 +1,63 @@
+package com.shop.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 使用hutool JSON的编解码器,即原来的缓存格式
+ *
+ * @author humeng
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public boolean canEncode(Object value) {
+        return true;
+    }
+
+    @Override
+    public boolean canDecode(byte[] bytes) {
+        for (byte b : bytes) {
+            if (!Character.isWhitespace(b)) {
+                return b == '{' || b == '[';
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] bytes, Class<T> type) {
+        return JSONUtil.toList(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public byte[] encodeRedisData(RedisData<?> redisData) {
+        return encode(redisData);
+    }
+
+    @Override
+    public <T> RedisData<T> decodeRedisData(byte[] bytes, Class<T> type) {
+        // 只解析一次json字符串,data部分直接从JSONObject转换
+        RedisData<?> raw = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+        RedisData<T> redisData = new RedisData<>();
+        redisData.setExpireTime(raw.getExpireTime());
+        redisData.setDelta(raw.getDelta());
+        if (raw.getData() != null) {
+            redisData.setData(JSONUtil.toBean((JSONObject) raw.getData(), type));
+        }
+        return redisData;
+    }
+}
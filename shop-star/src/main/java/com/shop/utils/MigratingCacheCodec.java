@@ -0,0 +1,64 @@
+package com.shop.utils;
+
+import java.util.List;
+
+/**
+ * 迁移模式的编解码器:用新格式写入,读取时根据数据本身判断是新格式还是旧格式
+ * <p>
+ * 新格式无法编码的对象(例如包含不支持的字段类型)仍然用旧格式写入
+ *
+ * @author humeng
+ */
+public class MigratingCacheCodec implements CacheCodec {
+
+    private final CacheCodec primary;
+    private final CacheCodec legacy;
+
+    public MigratingCacheCodec(CacheCodec primary, CacheCodec legacy) {
+        this.primary = primary;
+        this.legacy = legacy;
+    }
+
+    @Override
+    public boolean canEncode(Object value) {
+        return primary.canEncode(value) || legacy.canEncode(value);
+    }
+
+    @Override
+    public boolean canDecode(byte[] bytes) {
+        return primary.canDecode(bytes) || legacy.canDecode(bytes);
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return writer(value).encode(value);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return reader(bytes).decode(bytes, type);
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] bytes, Class<T> type) {
+        return reader(bytes).decodeList(bytes, type);
+    }
+
+    @Override
+    public byte[] encodeRedisData(RedisData<?> redisData) {
+        return writer(redisData).encodeRedisData(redisData);
+    }
+
+    @Override
+    public <T> RedisData<T> decodeRedisData(byte[] bytes, Class<T> type) {
+        return reader(bytes).decodeRedisData(bytes, type);
+    }
+
+    private CacheCodec writer(Object value) {
+        return primary.canEncode(value) ? primary : legacy;
+    }
+
+    private CacheCodec reader(byte[] bytes) {
+        return primary.canDecode(bytes) ? primary : legacy;
+    }
+}
@@ -0,0 +1,113 @@
+package com.shop.utils;
+
+import com.shop.dto.OrderStatusDTO;
+import com.shop.entity.VoucherOrder;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.shop.utils.RedisConstants.SECKILL_ORDER_STATUS_KEY;
+import static com.shop.utils.RedisConstants.SECKILL_ORDER_STATUS_TTL;
+
+/**
+ * 秒杀订单的处理状态,只保存在redis中,客户端轮询订单状态不访问数据库
+ * <p>
+ * 订单id的高32位是生成时的秒数,按分钟分桶:每分钟一个hash,field为订单id,value为 状态:用户id[:失败原因],
+ * 每次写入时把整个hash的过期时间重置为1小时。
+ * 消费者创建订单或处理失败后写入状态,查询不到状态且订单id生成不久的订单认为还在排队
+ *
+ * @author humeng
+ */
+@Component
+public class OrderStatusRecorder {
+
+    public static final String QUEUED = "QUEUED";
+    public static final String CREATED = "CREATED";
+    public static final String FAILED = "FAILED";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 批量记录创建成功的订单
+     *
+     * @param orders 订单
+     */
+    public void created(Collection<VoucherOrder> orders) {
+        Map<String, Map<String, String>> buckets = new HashMap<>();
+        for (VoucherOrder order : orders) {
+            buckets.computeIfAbsent(bucketKey(order.getId()), k -> new HashMap<>())
+                    .put(order.getId().toString(), CREATED + ":" + order.getUserId());
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            buckets.forEach((key, fields) -> {
+                conn.hMSet(key, fields);
+                conn.expire(key, SECKILL_ORDER_STATUS_TTL);
+            });
+            return null;
+        });
+    }
+
+    /**
+     * 记录处理失败的订单
+     *
+     * @param order  订单
+     * @param reason 失败原因
+     */
+    public void failed(VoucherOrder order, String reason) {
+        String key = bucketKey(order.getId());
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.hSet(key, order.getId().toString(), FAILED + ":" + order.getUserId() + ":" + reason);
+            conn.expire(key, SECKILL_ORDER_STATUS_TTL);
+            return null;
+        });
+    }
+
+    /**
+     * 查询订单状态
+     *
+     * @param orderId 订单id
+     * @param userId  当前用户id,只能查询自己的订单
+     * @return 订单不存在、不属于当前用户或者已经过期时返回null
+     */
+    public OrderStatusDTO query(Long orderId, Long userId) {
+        Object value = stringRedisTemplate.opsForHash().get(bucketKey(orderId), orderId.toString());
+        if (value == null) {
+            return isRecent(orderId) ? new OrderStatusDTO(orderId, QUEUED, null) : null;
+        }
+        // 状态:用户id[:失败原因],失败原因中可能包含冒号
+        String[] parts = value.toString().split(":", 3);
+        if (!userId.toString().equals(parts[1])) {
+            return null;
+        }
+        return new OrderStatusDTO(orderId, parts[0], parts.length > 2 ? parts[2] : null);
+    }
+
+    /**
+     * 订单id是否在状态的保存时间内生成
+     */
+    private static boolean isRecent(Long orderId) {
+        long created = seconds(orderId);
+        long now = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
+        // 允许节点之间有少量的时钟偏差
+        return created <= now + 60 && now - created < SECKILL_ORDER_STATUS_TTL;
+    }
+
+    private static long seconds(Long orderId) {
+        return (orderId >>> 32) + RedisIdWorker.BEGIN_TIMESTAMP;
+    }
+
+    private static String bucketKey(Long orderId) {
+        return SECKILL_ORDER_STATUS_KEY + seconds(orderId) / 60;
+    }
+}
@@ -0,0 +1,254 @@
+package com.shop.utils;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 基于redis bitmap的布隆过滤器,本地保存一份位图的镜像
+ * <p>
+ * 判断是否存在只读本地镜像,不需要访问redis;添加元素时同时写本地镜像和redis,
+ * 其他节点通过广播或定时从redis重新加载同步本地镜像。
+ * <p>
+ * 重建和重新加载都只会置位不会清位(OR合并),避免覆盖其他节点同时添加的元素,布隆过滤器不能出现误判为不存在
+ *
+ * @author humeng
+ */
+@Slf4j
+public class RedisBloomFilter {
+    /**
+     * redis bitmap的最大位数 2^32
+     */
+    private static final long MAX_BITS = 1L << 32;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final byte[] rawKey;
+    @Getter
+    private final String key;
+    @Getter
+    private final long numBits;
+    @Getter
+    private final int numHashFunctions;
+    @Getter
+    private final double fpp;
+
+    /**
+     * 本地镜像,下标和redis的offset一致
+     */
+    private final AtomicLongArray bits;
+
+    /**
+     * 是否已经从数据库或redis初始化,未初始化时认为所有元素都可能存在,避免误拦截
+     */
+    private volatile boolean ready;
+
+    /**
+     * @param key                redis中bitmap的key
+     * @param expectedInsertions 预计元素数量
+     * @param fpp                期望的误判率
+     */
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, String key, long expectedInsertions, double fpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.key = key;
+        this.rawKey = key.getBytes(StandardCharsets.UTF_8);
+        this.fpp = fpp;
+        long n = Math.max(expectedInsertions, 1);
+        // m = -n*ln(p)/(ln2)^2 , k = m/n*ln2
+        long m = (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        // 按64位对齐,方便和long数组互相转换
+        this.numBits = Math.min(Math.max(64, (m + 63) / 64 * 64), MAX_BITS);
+        this.numHashFunctions = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+        this.bits = new AtomicLongArray((int) (numBits / 64));
+    }
+
+    /**
+     * 判断元素是否可能存在
+     *
+     * @param id 元素
+     * @return false表示一定不存在
+     */
+    public boolean mightContain(Object id) {
+        if (!ready) {
+            return true;
+        }
+        for (long index : indexes(id)) {
+            if ((bits.get((int) (index >>> 6)) & (1L << (index & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 添加元素,写入本地镜像和redis
+     *
+     * @param id 元素
+     */
+    public void add(Object id) {
+        long[] indexes = addLocal(id);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long index : indexes) {
+                connection.stringCommands().setBit(rawKey, index, true);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 只添加到本地镜像,收到其他节点的广播时调用
+     *
+     * @param id 元素
+     * @return 元素对应的位下标
+     */
+    public long[] addLocal(Object id) {
+        long[] indexes = indexes(id);
+        for (long index : indexes) {
+            setBit(bits, index);
+        }
+        return indexes;
+    }
+
+    /**
+     * 根据全量数据重建,先写入临时key再用BITOP OR合并到redis中的位图,最后把合并结果加载到本地镜像。
+     * 不能直接rename覆盖:读取数据库之后其他节点添加的元素会被清除
+     *
+     * @param ids 全量元素
+     */
+    public void rebuild(Collection<?> ids) {
+        AtomicLongArray fresh = new AtomicLongArray((int) (numBits / 64));
+        for (Object id : ids) {
+            for (long index : indexes(id)) {
+                setBit(fresh, index);
+            }
+        }
+        byte[] bytes = toRedisBytes(fresh);
+        // 每次重建使用不同的临时key,多个节点同时启动时互不覆盖
+        byte[] tmpKey = (key + ":tmp:" + UUID.randomUUID()).getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.stringCommands().set(tmpKey, bytes);
+            // BITOP OR live live tmp,live不存在时当作全0
+            connection.stringCommands().bitOp(RedisStringCommands.BitOperation.OR, rawKey, rawKey, tmpKey);
+            connection.keyCommands().del(tmpKey);
+            return null;
+        });
+        // 本地镜像合并本次重建的结果,再合并redis中包含其他节点添加的元素的位图
+        orLocal(fresh);
+        reload();
+        ready = true;
+        log.info("布隆过滤器{}重建完成,元素数量:{},位数:{},哈希函数个数:{}", key, ids.size(), numBits, numHashFunctions);
+    }
+
+    /**
+     * 从redis重新加载本地镜像,补上可能丢失的广播。
+     * 合并到当前镜像而不是替换,读取redis之后收到的广播添加的元素不会丢失
+     *
+     * @return redis中是否存在该位图
+     */
+    public boolean reload() {
+        byte[] bytes = stringRedisTemplate.execute(
+                (RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey));
+        if (bytes == null) {
+            return false;
+        }
+        int length = (int) Math.min(bytes.length, numBits / 8);
+        for (int i = 0; i < length; i++) {
+            int b = bytes[i] & 0xFF;
+            if (b == 0) {
+                continue;
+            }
+            for (int j = 0; j < 8; j++) {
+                // redis bitmap中offset 0是第一个字节的最高位
+                if ((b & (0x80 >>> j)) != 0) {
+                    setBit(bits, (long) i * 8 + j);
+                }
+            }
+        }
+        ready = true;
+        return true;
+    }
+
+    private void orLocal(AtomicLongArray other) {
+        for (int i = 0; i < other.length(); i++) {
+            long value = other.get(i);
+            if (value != 0) {
+                bits.getAndAccumulate(i, value, (a, b) -> a | b);
+            }
+        }
+    }
+
+    /**
+     * 根据本地镜像中置位的比例估算当前的误判率 (置位比例)^k
+     *
+     * @return 估算的误判率
+     */
+    public double expectedFpp() {
+        long setBits = 0;
+        for (int i = 0; i < bits.length(); i++) {
+            setBits += Long.bitCount(bits.get(i));
+        }
+        return Math.pow((double) setBits / numBits, numHashFunctions);
+    }
+
+    private static void setBit(AtomicLongArray array, long index) {
+        int i = (int) (index >>> 6);
+        long mask = 1L << (index & 63);
+        long old;
+        do {
+            old = array.get(i);
+            if ((old & mask) != 0) {
+                return;
+            }
+        } while (!array.compareAndSet(i, old, old | mask));
+    }
+
+    private byte[] toRedisBytes(AtomicLongArray array) {
+        byte[] bytes = new byte[(int) (numBits / 8)];
+        for (int i = 0; i < bytes.length; i++) {
+            int b = 0;
+            for (int j = 0; j < 8; j++) {
+                long index = (long) i * 8 + j;
+                if ((array.get((int) (index >>> 6)) & (1L << (index & 63))) != 0) {
+                    b |= 0x80 >>> j;
+                }
+            }
+            bytes[i] = (byte) b;
+        }
+        return bytes;
+    }
+
+    /**
+     * 双重哈希计算k个位下标 g_i(x) = h1(x) + i*h2(x)
+     */
+    private long[] indexes(Object id) {
+        long h1 = mix64(fnv1a64(String.valueOf(id).getBytes(StandardCharsets.UTF_8)));
+        long h2 = mix64(h1 + 0x9E3779B97F4A7C15L);
+        long[] indexes = new long[numHashFunctions];
+        for (int i = 0; i < numHashFunctions; i++) {
+            long combined = h1 + i * h2;
+            indexes[i] = (combined & Long.MAX_VALUE) % numBits;
+        }
+        return indexes;
+    }
+
+    private static long fnv1a64(byte[] data) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : data) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+}
@@ -8,16 +8,47 @@ public class RedisConstants {
 
     public static final Long CACHE_NULL_TTL = 2L;
 
-    public static final Long CACHE_SHOP_TTL = 30L;
+    public static final Long CACHE_SHOP_TTL = 300L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+
+    public static final Long CACHE_VOUCHER_SHOP_TTL = 30L;
+    public static final String CACHE_VOUCHER_SHOP_KEY = "cache:voucher:shop:";
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_LOADED_CHANNEL = "cache:loaded";
+    public static final String CACHE_BLOOM_CHANNEL = "cache:bloom";
+    public static final String CACHE_INVALIDATE_RETRY_STREAM = "stream.cache.invalidate";
+    public static final String BLOOM_FILTER_KEY = "bloom:";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_SHOP_TYPE_KEY = "lock:shop_type";
+    public static final String LOCK_VOUCHER_SHOP_KEY = "lock:voucher:shop:";
+    public static final String LOCK_BLOG_HOT_KEY = "lock:blog:hot";
+    public static final String LOCK_BLOG_KEY = "lock:blog:";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_ORDER_STATUS_KEY = "order:status:";
+    public static final Long SECKILL_ORDER_STATUS_TTL = 3600L;
+    public static final String SECKILL_DLQ_KEY = "stream.orders.dlq";
+    public static final String SECKILL_VOUCHER_CHANNEL = "seckill:voucher";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    public static final String BLOG_LIKED_DIRTY_KEY = "blog:liked:dirty";
+    public static final String BLOG_HOT_KEY = "blog:hot";
+    public static final String BLOG_HOT_EPOCH_KEY = "blog:hot:epoch";
     public static final String FEED_KEY = "feed:";
+    public static final String FEED_OUTBOX_KEY = "feed:outbox:";
+    public static final String FEED_BIG_AUTHORS_KEY = "feed:big-authors";
+    public static final String FOLLOWS_KEY = "follows:";
+    public static final String BLOG_POST_STREAM_KEY = "stream.blog.post";
+    public static final String BLOG_POST_DLQ_KEY = "stream.blog.post.dlq";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shop_type";
+    public static final String SHOP_HOT_KEY = "shop:hot";
 }
@@ -8,4 +8,8 @@ import java.time.LocalDateTime;
 public class RedisData<T> {
     private LocalDateTime expireTime;
     private T data;
+    /**
+     * 最近一次重建缓存的耗时(毫秒),提前刷新时使用
+     */
+    private Long delta;
 }
@@ -1,18 +1,37 @@
 package com.shop.utils;
 
+import com.shop.config.IdWorkerProperties;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 全局id生成器:时间戳 << 32 | 当天的序列号
+ * <p>
+ * 号段模式下每个节点用 INCRBY step 一次申请一段序列号,在本地通过AtomicLong分配,
+ * 当前号段剩余不足prefetchRatio时异步申请下一段;跨天时丢弃前一天的号段,重新申请当天的号段。
+ * 节点重启时未用完的号段被丢弃,序列号不连续但不会重复
+ */
+@Slf4j
 @Component
 public class RedisIdWorker {
     private final StringRedisTemplate stringRedisTemplate;
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    private final IdWorkerProperties idWorkerProperties;
+
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate, IdWorkerProperties idWorkerProperties) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.idWorkerProperties = idWorkerProperties;
     }
 
     // 开始时间戳
@@ -20,20 +39,46 @@ public class RedisIdWorker {
     // 序列号的位数
     private static final int COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    /**
+     * 每个业务前缀的号段
+     */
+    private final ConcurrentHashMap<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public long createId(String keyPrefix) {
         // 1.⽣成时间戳
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
         // 2.⽣成序列号
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        // 根据key进⾏⾃增 （increment：没有key则创建⼀个并初始值为0，因此不需要考虑NPE）
-        long count = stringRedisTemplate.opsForValue().increment("icr:" +
-                keyPrefix + ":" + date);
+        String date = now.format(DATE_FORMATTER);
+        long count;
+        if (idWorkerProperties.isSegmentEnabled()) {
+            count = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(date);
+        } else {
+            // 根据key进⾏⾃增 （increment：没有key则创建⼀个并初始值为0，因此不需要考虑NPE）
+            count = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, date));
+        }
         // 3.拼接并返回
         return timestamp << COUNT_BITS | count;
     }
 
+    private static String counterKey(String keyPrefix, String date) {
+        return "icr:" + keyPrefix + ":" + date;
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        prefetchExecutor.shutdownNow();
+    }
+
     //⽣成开始时间戳
     private void createTimestamp() {
         //⽣成2023年1⽉1⽇0点0分0秒对应的秒数
@@ -41,4 +86,92 @@ public class RedisIdWorker {
         long second = time.toEpochSecond(ZoneOffset.UTC);
         System.out.println(second); // 1672531200
     }
+
+    /**
+     * 一段连续的序列号[next, max]
+     */
+    private static class Segment {
+        private final String date;
+        private final AtomicLong next;
+        private final long max;
+        /**
+         * 分配到该序列号时开始预取下一段
+         */
+        private final long prefetchAt;
+
+        private Segment(String date, long min, long max, long prefetchAt) {
+            this.date = date;
+            this.next = new AtomicLong(min);
+            this.max = max;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+
+    /**
+     * 一个业务前缀的当前号段和预取的下一段
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private CompletableFuture<Segment> prefetched;
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long next(String date) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.date.equals(date)) {
+                    long value = segment.next.getAndIncrement();
+                    if (value <= segment.max) {
+                        // 每个序列号只会分配给一个线程,只有一个线程触发预取
+                        if (value == segment.prefetchAt) {
+                            prefetch(date);
+                        }
+                        return value;
+                    }
+                }
+                // 号段用完或者已经跨天,切换号段
+                switchSegment(segment, date);
+            }
+        }
+
+        private synchronized void prefetch(String date) {
+            if (prefetched == null) {
+                prefetched = CompletableFuture.supplyAsync(() -> lease(date), prefetchExecutor);
+            }
+        }
+
+        private synchronized void switchSegment(Segment expected, String date) {
+            if (current != expected) {
+                // 其他线程已经切换
+                return;
+            }
+            Segment segment = null;
+            if (prefetched != null) {
+                try {
+                    segment = prefetched.join();
+                } catch (Exception e) {
+                    log.warn("预取{}的号段失败,同步申请", keyPrefix, e);
+                }
+                prefetched = null;
+            }
+            if (segment == null || !segment.date.equals(date)) {
+                segment = lease(date);
+            }
+            current = segment;
+        }
+
+        private Segment lease(String date) {
+            int step = idWorkerProperties.getStep();
+            Long max = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, date), step);
+            if (max == null) {
+                throw new IllegalStateException("申请" + keyPrefix + "的号段失败");
+            }
+            long min = max - step + 1;
+            long remain = Math.max(1, Math.min(step - 1, (long) (step * idWorkerProperties.getPrefetchRatio())));
+            return new Segment(date, min, max, max - remain);
+        }
+    }
 }
@@ -0,0 +1,120 @@
+package com.shop.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.shop.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.shop.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.shop.utils.RedisConstants.SECKILL_STREAM_KEY;
+
+/**
+ * 秒杀相关的redis key
+ * <p>
+ * 分片数为0时使用原来的key:seckill:stock:voucherId、seckill:order:voucherId、stream.orders。
+ * 这三个key没有共同的hash tag,在redis集群中位于不同的slot,秒杀脚本会报CROSSSLOT错误,
+ * 所以不分片只能用于单机或主从部署,redis集群必须配置分片数大于0。
+ * <p>
+ * 分片模式下每个分片的key都带有相同的hash tag {seckill:分片号},保证同一个分片的key在redis集群中位于同一个slot:
+ * seckill:stock:{seckill:s}:voucherId、seckill:order:{seckill:s}:voucherId、stream.orders:{seckill:s}。
+ * 用户按id固定路由到一个分片(home分片),该分片的订单集合负责一人一单
+ *
+ * @author humeng
+ */
+public final class SeckillKeys {
+
+    private SeckillKeys() {
+    }
+
+    private static String tag(int shard) {
+        return "{seckill:" + shard + "}";
+    }
+
+    public static String stockKey(Long voucherId) {
+        return SECKILL_STOCK_KEY + voucherId;
+    }
+
+    public static String orderKey(Long voucherId) {
+        return SECKILL_ORDER_KEY + voucherId;
+    }
+
+    public static String streamKey() {
+        return SECKILL_STREAM_KEY;
+    }
+
+    public static String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + tag(shard) + ":" + voucherId;
+    }
+
+    public static String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + tag(shard) + ":" + voucherId;
+    }
+
+    public static String streamKey(int shard) {
+        return SECKILL_STREAM_KEY + ":" + tag(shard);
+    }
+
+    /**
+     * 用户的home分片
+     *
+     * @param userId     用户id
+     * @param partitions 分片数
+     * @return 分片号
+     */
+    public static int shardOf(Long userId, int partitions) {
+        return (int) Math.floorMod(userId, (long) partitions);
+    }
+
+    /**
+     * 所有的库存key
+     *
+     * @param voucherId  优惠券id
+     * @param partitions 分片数,0为不分片
+     * @return 库存key
+     */
+    public static List<String> stockKeys(Long voucherId, int partitions) {
+        if (partitions <= 0) {
+            return Collections.singletonList(stockKey(voucherId));
+        }
+        List<String> keys = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            keys.add(stockKey(voucherId, i));
+        }
+        return keys;
+    }
+
+    /**
+     * 所有的订单消息队列
+     *
+     * @param partitions 分片数,0为不分片
+     * @return 消息队列的key
+     */
+    public static List<String> streamKeys(int partitions) {
+        if (partitions <= 0) {
+            return Collections.singletonList(streamKey());
+        }
+        List<String> keys = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            keys.add(streamKey(i));
+        }
+        return keys;
+    }
+
+    /**
+     * 把库存平均分配到各个分片,余数分配给前面的分片
+     *
+     * @param stock      总库存
+     * @param partitions 分片数,0为不分片
+     * @return 每个分片的库存,与{@link #stockKeys(Long, int)}的顺序一致
+     */
+    public static List<Integer> splitStock(int stock, int partitions) {
+        if (partitions <= 0) {
+            return Collections.singletonList(stock);
+        }
+        List<Integer> stocks = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            stocks.add(stock / partitions + (i < stock % partitions ? 1 : 0));
+        }
+        return stocks;
+    }
+}
@@ -0,0 +1,201 @@
+package com.shop.utils;
+
+import cn.hutool.core.collection.CollUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.shop.config.SeckillProperties;
+import com.shop.entity.SeckillVoucher;
+import com.shop.entity.VoucherOrder;
+import com.shop.mapper.VoucherOrderMapper;
+import com.shop.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 秒杀预热
+ * <p>
+ * 定时加载所有未结束的秒杀优惠券:
+ * <p>
+ * 1. 秒杀时间段保存到本地,时间段外的请求不访问redis直接返回
+ * <p>
+ * 2. 检查进行中和即将开始的优惠券在redis中的库存key,不存在时(redis重启或数据丢失)从数据库恢复:
+ * 先用pipeline批量写入已下单的用户,再用SET NX写入剩余库存,过期时间为秒杀结束时间。
+ * 分片模式下只恢复丢失的分片。数据库的库存还没有扣减消息队列中未落库的订单,
+ * 而仍然存在的分片已经扣减了,所以剩余库存还要减去这些订单:
+ * 丢失的分片 = 数据库库存 - 仍然存在的分片的库存 - 下单用户集合中还没有落库的用户数
+ *
+ * @author humeng
+ */
+@Slf4j
+@Component
+public class SeckillPreheater {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private SeckillVoucherRegistry seckillVoucherRegistry;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    /**
+     * 每次SADD的用户数
+     */
+    private static final int BUYER_BATCH_SIZE = 1000;
+
+    @Scheduled(fixedDelayString = "${shop.seckill.preheat.interval-millis:60000}")
+    public void preheat() {
+        SeckillProperties.Preheat preheat = seckillProperties.getPreheat();
+        if (!preheat.isEnabled()) {
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> unfinished = seckillVoucherService.query()
+                .gt("end_time", now)
+                .list();
+        unfinished.forEach(v -> seckillVoucherRegistry.updateWindow(v.getVoucherId(), v.getBeginTime(), v.getEndTime()));
+        seckillVoucherRegistry.pruneWindows(now.minusDays(1));
+        // 只检查进行中和即将开始的优惠券的库存
+        LocalDateTime ahead = now.plusMinutes(preheat.getAheadMinutes());
+        List<SeckillVoucher> vouchers = unfinished.stream()
+                .filter(v -> v.getBeginTime().isBefore(ahead))
+                .collect(Collectors.toList());
+        if (vouchers.isEmpty()) {
+            return;
+        }
+
+        // 一次pipeline读取所有优惠券所有分片的库存
+        int partitions = seckillProperties.getPartitions();
+        List<String> keys = new ArrayList<>();
+        vouchers.forEach(v -> keys.addAll(SeckillKeys.stockKeys(v.getVoucherId(), partitions)));
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (stocks == null) {
+            return;
+        }
+        int shards = Math.max(partitions, 1);
+        for (int i = 0; i < vouchers.size(); i++) {
+            List<String> voucherStocks = stocks.subList(i * shards, (i + 1) * shards);
+            if (voucherStocks.contains(null)) {
+                try {
+                    recover(vouchers.get(i), voucherStocks, now);
+                } catch (Exception e) {
+                    log.error("恢复优惠券{}的秒杀库存失败", vouchers.get(i).getVoucherId(), e);
+                }
+                continue;
+            }
+            // redis中仍有库存(补货或者标记之后库存又被释放),清除本节点的售罄、失效标记
+            long total = voucherStocks.stream().mapToLong(Long::parseLong).sum();
+            if (total > 0) {
+                seckillVoucherRegistry.clearLocal(vouchers.get(i).getVoucherId());
+            }
+        }
+    }
+
+    /**
+     * 从数据库恢复丢失的库存和已下单的用户
+     *
+     * @param voucher 秒杀优惠券
+     * @param stocks  redis中各分片的库存,null表示丢失
+     * @param now     当前时间
+     */
+    private void recover(SeckillVoucher voucher, List<String> stocks, LocalDateTime now) {
+        Long voucherId = voucher.getVoucherId();
+        int partitions = seckillProperties.getPartitions();
+        long ttl = Duration.between(now, voucher.getEndTime()).getSeconds();
+        if (ttl <= 0) {
+            return;
+        }
+        // 先查询已下单的用户,再查询数据库库存和下单用户集合的大小。
+        // 两次查询之间落库的订单会被多扣一次,恢复的库存只会偏少,不会超卖
+        List<Object> userIds = voucherOrderMapper.selectObjs(new QueryWrapper<VoucherOrder>()
+                .select("user_id")
+                .eq("voucher_id", voucherId));
+        SeckillVoucher latest = seckillVoucherService.getById(voucherId);
+        if (latest == null) {
+            return;
+        }
+        int shards = stocks.size();
+        List<String> orderKeys = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            orderKeys.add(partitions > 0 ? SeckillKeys.orderKey(voucherId, shard) : SeckillKeys.orderKey(voucherId));
+        }
+        List<Object> buyerCounts = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            orderKeys.forEach(conn::sCard);
+            return null;
+        });
+
+        // 丢失的分片及其用户
+        List<Integer> missing = new ArrayList<>();
+        int remaining = latest.getStock();
+        for (int shard = 0; shard < shards; shard++) {
+            if (stocks.get(shard) == null) {
+                missing.add(shard);
+            } else {
+                remaining -= Integer.parseInt(stocks.get(shard));
+            }
+        }
+        int[] persisted = new int[shards];
+        Map<String, List<String>> buyers = new HashMap<>();
+        for (Object userId : userIds) {
+            Long uid = ((Number) userId).longValue();
+            int shard = partitions > 0 ? SeckillKeys.shardOf(uid, partitions) : 0;
+            persisted[shard]++;
+            if (missing.contains(shard)) {
+                buyers.computeIfAbsent(orderKeys.get(shard), k -> new ArrayList<>()).add(uid.toString());
+            }
+        }
+        // 下单用户集合中还没有落库的用户,这些订单已经扣减了redis的库存,还没有扣减数据库的库存
+        long queued = 0;
+        for (int shard = 0; shard < shards; shard++) {
+            Object count = buyerCounts.get(shard);
+            queued += Math.max(0, (count == null ? 0 : (Long) count) - persisted[shard]);
+        }
+        remaining -= queued;
+        List<Integer> missingStocks = SeckillKeys.splitStock(Math.max(remaining, 0), missing.size());
+
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            // 先写入已下单的用户,库存key出现之前不会有请求通过脚本
+            buyers.forEach((orderKey, users) -> {
+                for (List<String> batch : CollUtil.split(users, BUYER_BATCH_SIZE)) {
+                    conn.sAdd(orderKey, batch.toArray(new String[0]));
+                }
+                conn.expire(orderKey, ttl);
+            });
+            for (int i = 0; i < missing.size(); i++) {
+                int shard = missing.get(i);
+                String stockKey = partitions > 0 ? SeckillKeys.stockKey(voucherId, shard) : SeckillKeys.stockKey(voucherId);
+                // 其他节点可能同时在恢复,只写入不存在的key
+                conn.set(stockKey, missingStocks.get(i).toString(),
+                        Expiration.from(ttl, TimeUnit.SECONDS), RedisStringCommands.SetOption.ifAbsent());
+            }
+            return null;
+        });
+        seckillVoucherRegistry.reset(voucherId);
+        log.warn("从数据库恢复优惠券{}的秒杀库存,分片{},剩余库存{},已下单用户{},未落库订单{}",
+                voucherId, missing, Math.max(remaining, 0), userIds.size(), queued);
+    }
+}
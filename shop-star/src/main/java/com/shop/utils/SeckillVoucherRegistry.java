@@ -0,0 +1,212 @@
+package com.shop.utils;
+
+import com.shop.entity.SeckillVoucher;
+import com.shop.service.ISeckillVoucherService;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.shop.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.shop.utils.RedisConstants.SECKILL_VOUCHER_CHANNEL;
+
+/**
+ * 秒杀优惠券的本地状态
+ * <p>
+ * 秒杀脚本返回库存不足或优惠券已失效后,在本地标记该优惠券并广播到所有节点,
+ * 之后的秒杀请求在生成订单id和执行脚本之前直接返回,不再访问redis。
+ * 库存重新写入redis时清除标记,预热时发现redis中有库存也会清除本节点的标记。
+ * 标记有过期时间,即使错过了清除标记的广播,过期后也会重新执行脚本得到正确的结果
+ * <p>
+ * 同时保存秒杀时间段,不在时间段内的请求直接返回。时间段由预热定时加载所有未结束的优惠券,
+ * 本地没有的优惠券(其他节点新增或者重启后还没有预热)在第一次请求时查询数据库,
+ * 数据库中不存在的优惠券也会记录下来,直到下次预热时清除
+ *
+ * @author humeng
+ */
+@Slf4j
+@Component
+public class SeckillVoucherRegistry {
+
+    public enum Status {
+        /**
+         * 库存不足
+         */
+        SOLD_OUT,
+        /**
+         * 优惠券已失效(库存key已过期)
+         */
+        EXPIRED,
+        /**
+         * 清除标记,只用于广播
+         */
+        RESET,
+        /**
+         * 秒杀未开始,由本地的时间段判断,不广播
+         */
+        NOT_STARTED,
+        /**
+         * 秒杀已结束,由本地的时间段判断,不广播
+         */
+        ENDED,
+        /**
+         * 秒杀优惠券不存在,不广播
+         */
+        NOT_FOUND
+    }
+
+    /**
+     * 数据库中不存在的优惠券的时间段
+     */
+    private static final LocalDateTime[] NO_WINDOW = new LocalDateTime[0];
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    /**
+     * 售罄或失效的标记,写入后经过shop.seckill.flag-ttl-seconds过期
+     */
+    private Cache<Long, Status> flags;
+
+    /**
+     * 优惠券的秒杀时间段 [beginTime, endTime]
+     */
+    private final ConcurrentHashMap<Long, LocalDateTime[]> windows = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        flags = Caffeine.newBuilder()
+                .expireAfterWrite(seckillProperties.getFlagTtlSeconds(), TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * 优惠券的本地标记
+     *
+     * @param voucherId 优惠券id
+     * @return 没有标记时返回null
+     */
+    public Status statusOf(Long voucherId) {
+        return flags.getIfPresent(voucherId);
+    }
+
+    /**
+     * 根据秒杀时间段判断优惠券是否可以秒杀,本地没有时间段时查询数据库
+     *
+     * @param voucherId 优惠券id
+     * @param now       当前时间
+     * @return NOT_FOUND、NOT_STARTED、ENDED,只有在时间段内时返回null
+     */
+    public Status windowStatus(Long voucherId, LocalDateTime now) {
+        LocalDateTime[] window = windows.computeIfAbsent(voucherId, this::loadWindow);
+        if (window.length == 0) {
+            return Status.NOT_FOUND;
+        }
+        if (now.isBefore(window[0])) {
+            return Status.NOT_STARTED;
+        }
+        if (now.isAfter(window[1])) {
+            return Status.ENDED;
+        }
+        return null;
+    }
+
+    private LocalDateTime[] loadWindow(Long voucherId) {
+        SeckillVoucher voucher = seckillVoucherService.query()
+                .select("voucher_id", "begin_time", "end_time")
+                .eq("voucher_id", voucherId)
+                .one();
+        if (voucher == null) {
+            return NO_WINDOW;
+        }
+        return new LocalDateTime[]{voucher.getBeginTime(), voucher.getEndTime()};
+    }
+
+    public void updateWindow(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime) {
+        windows.put(voucherId, new LocalDateTime[]{beginTime, endTime});
+    }
+
+    /**
+     * 删除在指定时间之前结束的时间段,以及数据库中不存在的优惠券
+     *
+     * @param before 时间
+     */
+    public void pruneWindows(LocalDateTime before) {
+        windows.values().removeIf(window -> window.length == 0 || window[1].isBefore(before));
+    }
+
+    public void markSoldOut(Long voucherId) {
+        mark(voucherId, Status.SOLD_OUT);
+    }
+
+    public void markExpired(Long voucherId) {
+        mark(voucherId, Status.EXPIRED);
+    }
+
+    /**
+     * 库存重新写入redis后清除所有节点的标记
+     *
+     * @param voucherId 优惠券id
+     */
+    public void reset(Long voucherId) {
+        flags.invalidate(voucherId);
+        publish(voucherId, Status.RESET);
+    }
+
+    /**
+     * 只清除本节点的标记,预热时发现redis中仍有库存(补货)时调用,每个节点都会预热所以不广播
+     *
+     * @param voucherId 优惠券id
+     */
+    public void clearLocal(Long voucherId) {
+        flags.invalidate(voucherId);
+    }
+
+    private void mark(Long voucherId, Status status) {
+        // 已经有相同的标记时不再重复广播
+        if (flags.asMap().put(voucherId, status) != status) {
+            publish(voucherId, status);
+        }
+    }
+
+    private void publish(Long voucherId, Status status) {
+        try {
+            stringRedisTemplate.convertAndSend(SECKILL_VOUCHER_CHANNEL, voucherId + ":" + status.name());
+        } catch (Exception e) {
+            // 广播失败只影响其他节点的短路,其他节点仍然可以通过脚本得到正确的结果
+            log.warn("广播优惠券{}的状态{}失败", voucherId, status, e);
+        }
+    }
+
+    /**
+     * 收到其他节点的广播,更新本地标记
+     *
+     * @param message 优惠券id:状态
+     */
+    public void onMessage(String message) {
+        int index = message.indexOf(':');
+        if (index < 0) {
+            return;
+        }
+        Long voucherId = Long.valueOf(message.substring(0, index));
+        Status status = Status.valueOf(message.substring(index + 1));
+        if (status == Status.RESET) {
+            flags.invalidate(voucherId);
+        } else {
+            flags.put(voucherId, status);
+        }
+    }
+}
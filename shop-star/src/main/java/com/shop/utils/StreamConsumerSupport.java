@@ -0,0 +1,182 @@
+package com.shop.utils;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * stream消息队列消费者的公共操作:创建消费者组、认领超时消息、死信队列、积压指标
+ * <p>
+ * 消费线程的读取循环由各个消费者自己实现,批量处理和逐条处理的方式不同
+ *
+ * @author humeng
+ */
+@Slf4j
+@Component
+public class StreamConsumerSupport {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 本节点消费者名称的前缀,由主机名和进程号组成,每个线程再加上序号
+     */
+    public static String consumerPrefix() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "unknown";
+        }
+        // RuntimeMXBean的名称格式为 pid@hostname
+        String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        return host + "-" + pid;
+    }
+
+    /**
+     * 创建消费者组,已经存在时忽略
+     */
+    public void createGroupIfAbsent(String streamKey, String group) {
+        try {
+            // XGROUP CREATE stream group 0 MKSTREAM
+            stringRedisTemplate.opsForStream().createGroup(streamKey, ReadOffset.from("0"), group);
+            log.info("创建stream消息队列{}的消费者组{}成功", streamKey, group);
+        } catch (RedisSystemException e) {
+            if (!String.valueOf(e.getMostSpecificCause().getMessage()).contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 删除没有未确认消息的消费者,避免重启后消费者组中残留大量消费者
+     */
+    public void removeConsumerIfIdle(String streamKey, String group, String consumerName) {
+        Consumer consumer = Consumer.from(group, consumerName);
+        try {
+            if (stringRedisTemplate.opsForStream().pending(streamKey, consumer).isEmpty()) {
+                stringRedisTemplate.opsForStream().deleteConsumer(streamKey, consumer);
+            }
+        } catch (Exception e) {
+            log.warn("删除消费者{}失败", consumerName, e);
+        }
+    }
+
+    /**
+     * 认领超过idleMillis没有确认的消息(消费者宕机或处理卡住)
+     *
+     * @return 认领到的消息,每次认领都会增加消息的投递次数
+     */
+    public List<MapRecord<String, Object, Object>> claimIdle(String streamKey, String group, String consumerName,
+                                                             long idleMillis) {
+        StreamOperations<String, Object, Object> ops = stringRedisTemplate.opsForStream();
+        // XPENDING stream group - + 100
+        PendingMessages pending = ops.pending(streamKey, group, Range.unbounded(), 100L);
+        List<RecordId> idle = new ArrayList<>();
+        for (PendingMessage message : pending) {
+            if (message.getElapsedTimeSinceLastDelivery().toMillis() >= idleMillis) {
+                idle.add(message.getId());
+            }
+        }
+        if (idle.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // XCLAIM stream group consumer min-idle-time id ...,只有仍然空闲的消息会被认领
+        List<MapRecord<String, Object, Object>> claimed = ops.claim(
+                streamKey, group, consumerName, Duration.ofMillis(idleMillis), idle.toArray(new RecordId[0]));
+        log.warn("{}认领了{}中{}条超时未确认的消息", consumerName, streamKey, claimed.size());
+        return claimed;
+    }
+
+    /**
+     * 消息的投递次数达到上限时,连同失败原因写入死信队列并确认原消息
+     *
+     * @param maxDeliveries 最大投递次数
+     * @param dlqKey        死信队列
+     * @param e             本次处理失败的原因
+     * @return true:已移入死信队列
+     */
+    public boolean deadLetterIfExhausted(String streamKey, String group, MapRecord<String, Object, Object> message,
+                                         int maxDeliveries, String dlqKey, Exception e) {
+        StreamOperations<String, Object, Object> ops = stringRedisTemplate.opsForStream();
+        String messageId = message.getId().getValue();
+        try {
+            // XPENDING stream group id id 1
+            PendingMessages pending = ops.pending(streamKey, group, Range.closed(messageId, messageId), 1L);
+            long deliveries = pending.isEmpty() ? 0 : pending.get(0).getTotalDeliveryCount();
+            if (deliveries < maxDeliveries) {
+                return false;
+            }
+            Map<String, String> fields = new HashMap<>();
+            message.getValue().forEach((k, v) -> fields.put(k.toString(), String.valueOf(v)));
+            fields.put("stream", streamKey);
+            fields.put("messageId", messageId);
+            fields.put("deliveries", String.valueOf(deliveries));
+            fields.put("reason", StrUtil.maxLength(e.getClass().getSimpleName() + ": " + e.getMessage(), 500));
+            ops.add(StreamRecords.string(fields).withStreamKey(dlqKey));
+            ops.acknowledge(streamKey, group, message.getId());
+            log.error("消息{}已投递{}次仍然失败,移入死信队列{}", messageId, deliveries, dlqKey);
+            return true;
+        } catch (Exception ex) {
+            log.error("消息{}移入死信队列失败", messageId, ex);
+            return false;
+        }
+    }
+
+    /**
+     * 消息队列的积压:未确认消息数取所有队列之和,延迟取所有队列的最大值
+     *
+     * @return [未确认消息数, 最新消息与最近投递的消息之间的时间差(毫秒)]
+     */
+    public long[] backlog(List<String> streamKeys, String group) {
+        StreamOperations<String, Object, Object> ops = stringRedisTemplate.opsForStream();
+        long pending = 0;
+        long lag = 0;
+        for (String streamKey : streamKeys) {
+            PendingMessagesSummary summary = ops.pending(streamKey, group);
+            pending += summary == null ? 0 : summary.getTotalPendingMessages();
+            StreamInfo.XInfoStream stream = ops.info(streamKey);
+            if (stream.streamLength() == 0) {
+                continue;
+            }
+            for (StreamInfo.XInfoGroup info : ops.groups(streamKey)) {
+                if (!group.equals(info.groupName())) {
+                    continue;
+                }
+                // 消息id的前半部分是写入时的毫秒时间戳
+                long lastGenerated = RecordId.of(stream.lastGeneratedId()).getTimestamp();
+                long lastDelivered = RecordId.of(info.lastDeliveredId()).getTimestamp();
+                if (lastDelivered == 0) {
+                    // 还没有投递过消息,从第一条消息开始算
+                    lastDelivered = RecordId.of(stream.firstEntryId()).getTimestamp();
+                }
+                lag = Math.max(lag, lastGenerated - lastDelivered);
+            }
+        }
+        return new long[]{pending, lag};
+    }
+}
@@ -0,0 +1,35 @@
+---
+--- 增加笔记的热度
+--- 热度 = Σ 权重 * e^((事件时间 - epoch) / tau),epoch之后发生的事件贡献更大,
+--- 等价于所有事件按 e^(-Δt / tau) 指数衰减,排序不受epoch影响
+---
+
+-- 排行榜 blog:hot
+local hotKey = KEYS[1]
+-- 基准时间 blog:hot:epoch
+local epochKey = KEYS[2]
+
+-- 笔记id
+local blogId = ARGV[1]
+-- 权重,取消点赞为负数
+local weight = tonumber(ARGV[2])
+-- 事件发生的时间(毫秒)
+local eventTime = tonumber(ARGV[3])
+-- 衰减的时间常数(毫秒)
+local tau = tonumber(ARGV[4])
+-- 当前时间(毫秒)
+local now = tonumber(ARGV[5])
+
+local epoch = tonumber(redis.call('get', epochKey))
+if not epoch then
+    epoch = now
+    redis.call('set', epochKey, epoch)
+end
+
+-- 取消点赞时笔记已经不在排行榜中,不再加入
+if weight < 0 and not redis.call('zscore', hotKey, blogId) then
+    return 0
+end
+
+redis.call('zincrby', hotKey, weight * math.exp((eventTime - epoch) / tau), blogId)
+return 1
@@ -0,0 +1,31 @@
+---
+--- 把热度的基准时间移动到当前时间,所有热度乘以 e^((epoch - newEpoch) / tau),避免热度随时间无限增长
+--- 同时只保留热度最高的maxSize个笔记
+---
+
+-- 排行榜 blog:hot
+local hotKey = KEYS[1]
+-- 基准时间 blog:hot:epoch
+local epochKey = KEYS[2]
+
+-- 新的基准时间(毫秒)
+local newEpoch = tonumber(ARGV[1])
+-- 衰减的时间常数(毫秒)
+local tau = tonumber(ARGV[2])
+-- 保留的最大笔记数
+local maxSize = tonumber(ARGV[3])
+
+redis.call('zremrangebyrank', hotKey, 0, -maxSize - 1)
+
+local count = 0
+local epoch = tonumber(redis.call('get', epochKey))
+if epoch then
+    local factor = math.exp((epoch - newEpoch) / tau)
+    local items = redis.call('zrange', hotKey, 0, -1, 'withscores')
+    for i = 1, #items, 2 do
+        redis.call('zadd', hotKey, tonumber(items[i + 1]) * factor, items[i])
+    end
+    count = #items / 2
+end
+redis.call('set', epochKey, newEpoch)
+return count
@@ -97,7 +97,8 @@ CREATE TABLE `tb_follow`
     `user_id`        bigint(20) UNSIGNED NOT NULL COMMENT '用户id',
     `follow_user_id` bigint(20) UNSIGNED NOT NULL COMMENT '关联的用户id',
     `create_time`    timestamp           NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
-    PRIMARY KEY (`id`) USING BTREE
+    PRIMARY KEY (`id`) USING BTREE,
+    INDEX `idx_follow_user_id` (`follow_user_id`, `id`) USING BTREE COMMENT '分页查询粉丝'
 ) ENGINE = InnoDB
   AUTO_INCREMENT = 1
   CHARACTER SET = utf8mb4
@@ -2409,7 +2410,8 @@ CREATE TABLE `tb_voucher_order`
     `use_time`    timestamp           NULL     DEFAULT NULL COMMENT '核销时间',
     `refund_time` timestamp           NULL     DEFAULT NULL COMMENT '退款时间',
     `update_time` timestamp           NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-    PRIMARY KEY (`id`) USING BTREE
+    PRIMARY KEY (`id`) USING BTREE,
+    UNIQUE INDEX `uk_user_voucher` (`user_id`, `voucher_id`) USING BTREE COMMENT '一人一单'
 ) ENGINE = InnoDB
   CHARACTER SET = utf8mb4
   COLLATE = utf8mb4_general_ci
@@ -0,0 +1,27 @@
+---
+--- 点赞或取消点赞,同时把笔记id加入待同步到数据库的集合
+--- 返回 {1, 点赞时间}:点赞成功 {0, 原来的点赞时间}:取消点赞
+---
+
+-- 点赞用户 blog:liked:{blogId}
+local likedKey = KEYS[1]
+-- 点赞数有变化的笔记 blog:liked:dirty
+local dirtyKey = KEYS[2]
+
+-- 用户id
+local userId = ARGV[1]
+-- 当前时间(毫秒)
+local now = ARGV[2]
+-- 笔记id
+local blogId = ARGV[3]
+
+redis.call('sadd', dirtyKey, blogId)
+
+local score = redis.call('zscore', likedKey, userId)
+if score then
+    redis.call('zrem', likedKey, userId)
+    return { 0, tonumber(score) }
+end
+
+redis.call('zadd', likedKey, now, userId)
+return { 1, tonumber(now) }
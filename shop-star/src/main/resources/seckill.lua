@@ -4,6 +4,17 @@
 --- DateTime: 2023/7/13 11:02
 ---
 
+-- 不分片时使用,三个key不在同一个slot,不能用于redis集群,集群使用seckill_partition.lua
+
+-- 库存key seckill:stock:voucherId
+local stockKey = KEYS[1]
+
+-- 订单key seckill:order:voucherId
+local orderKey = KEYS[2]
+
+-- 订单消息队列 stream.orders
+local streamKey = KEYS[3]
+
 -- 优惠券id
 local voucherId = ARGV[1]
 
@@ -13,12 +24,6 @@ local userId = ARGV[2]
 -- 订单id
 local orderId = ARGV[3]
 
--- 库存key
-local stockKey = 'seckill:stock:' .. voucherId
-
--- 订单key
-local orderKey = 'seckill:order:' .. voucherId
-
 -- 检查库存键是否存在
 if redis.call('exists', stockKey) == 0 then
     return 3
@@ -46,6 +51,6 @@ redis.call('incrby', stockKey, -1)
 redis.call('sadd', orderKey, userId)
 
 -- 发送消息到队列中 XADD stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
 -- 成功返回 0
 return 0
\ No newline at end of file
@@ -0,0 +1,52 @@
+---
+--- 分片秒杀:用户home分片上的下单脚本
+--- KEYS都带有相同的hash tag {seckill:分片号},在redis集群中位于同一个slot
+---
+
+-- 库存key seckill:stock:{seckill:s}:voucherId
+local stockKey = KEYS[1]
+
+-- 订单key seckill:order:{seckill:s}:voucherId
+local orderKey = KEYS[2]
+
+-- 订单消息队列 stream.orders:{seckill:s}
+local streamKey = KEYS[3]
+
+-- 优惠券id
+local voucherId = ARGV[1]
+
+-- 用户id
+local userId = ARGV[2]
+
+-- 订单id
+local orderId = ARGV[3]
+
+-- 检查库存键是否存在
+if redis.call('exists', stockKey) == 0 then
+    return 3
+end
+
+-- 一人一单由home分片的订单集合保证,先判断是否重复下单
+if (redis.call('sismember', orderKey, userId) == 1) then
+    --    存在重复下单
+    return 2
+end
+
+-- 判断库存是否充足
+local stock = tonumber(redis.call('get', stockKey))
+if (stock <= 0) then
+    --    本分片库存不足,先占用下单资格,由调用方到其他分片扣减库存,失败时调用方负责移除
+    redis.call('sadd', orderKey, userId)
+    return 4
+end
+
+-- 扣减库存
+redis.call('incrby', stockKey, -1)
+
+-- 下单
+redis.call('sadd', orderKey, userId)
+
+-- 发送消息到本分片的队列中
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 成功返回 0
+return 0
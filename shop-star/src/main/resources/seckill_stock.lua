@@ -0,0 +1,33 @@
+---
+--- 分片秒杀:home分片库存不足时,到其他分片扣减库存
+--- 一人一单已经由home分片的订单集合保证,这里只扣减库存并发送消息
+---
+
+-- 库存key seckill:stock:{seckill:s}:voucherId
+local stockKey = KEYS[1]
+
+-- 订单消息队列 stream.orders:{seckill:s}
+local streamKey = KEYS[2]
+
+-- 优惠券id
+local voucherId = ARGV[1]
+
+-- 用户id
+local userId = ARGV[2]
+
+-- 订单id
+local orderId = ARGV[3]
+
+-- 库存键不存在或库存不足
+local stock = tonumber(redis.call('get', stockKey))
+if (stock == nil or stock <= 0) then
+    return 1
+end
+
+-- 扣减库存
+redis.call('incrby', stockKey, -1)
+
+-- 发送消息到本分片的队列中
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 成功返回 0
+return 0
@@ -1,5 +1,10 @@
 package com.shop;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.shop.entity.SeckillVoucher;
+import com.shop.entity.VoucherOrder;
+import com.shop.service.ISeckillVoucherService;
+import com.shop.service.IVoucherOrderService;
 import com.shop.service.impl.ShopServiceImpl;
 import com.shop.utils.RedisIdWorker;
 import lombok.extern.slf4j.Slf4j;
@@ -8,6 +13,9 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.util.StopWatch;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -25,6 +33,12 @@ class ShopStarApplicationTests {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
     // @Test
     void testCacheBuild() {
         service.saveShop2Redis(1L, 10L);
@@ -32,13 +46,15 @@ class ShopStarApplicationTests {
 
     private static final ExecutorService es = Executors.newFixedThreadPool(500);
 
+    /**
+     * 300个线程各生成100个id,输出每秒生成的id数。对比 shop.id-worker.segment-enabled 为true和false时的吞吐量
+     */
     // @Test
     void testRedisIdWorker() throws InterruptedException {
         CountDownLatch countDownLatch = new CountDownLatch(300);
         Runnable runnable = () -> {
             for (int i = 0; i < 100; i++) {
-                long id = redisIdWorker.createId("order");
-                System.out.println("id = " + id);
+                redisIdWorker.createId("order");
             }
             countDownLatch.countDown();
         };
@@ -51,10 +67,65 @@ class ShopStarApplicationTests {
         countDownLatch.await();
         stopWatch.stop();
         System.out.println("stopWatch.getTotalTimeMillis() = " + stopWatch.getTotalTimeMillis());
+        System.out.println("ids/s = " + 300 * 100 * 1000L / Math.max(1, stopWatch.getTotalTimeMillis()));
 
     }
 
 
+    /**
+     * 压测专用的秒杀优惠券和用户id的起始值,不会与真实数据冲突
+     */
+    private static final long BENCH_VOUCHER_ID = 999_999_999L;
+
+    private static final long BENCH_USER_ID_BASE = 900_000_000L;
+
+    /**
+     * 比较不同批量大小下订单写入数据库的吞吐量。使用专用的优惠券和用户,每轮结束后删除写入的订单,
+     * 结束后删除优惠券
+     */
+    // @Test
+    void testBatchOrderThroughput() {
+        int total = 10000;
+        // 清理上次中断时残留的数据
+        voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", BENCH_VOUCHER_ID));
+        seckillVoucherService.removeById(BENCH_VOUCHER_ID);
+        SeckillVoucher voucher = new SeckillVoucher();
+        voucher.setVoucherId(BENCH_VOUCHER_ID);
+        voucher.setStock(total);
+        voucher.setBeginTime(LocalDateTime.now());
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        seckillVoucherService.save(voucher);
+        try {
+            for (int batchSize : new int[]{1, 50, 200, 500}) {
+                seckillVoucherService.update().set("stock", total).eq("voucher_id", BENCH_VOUCHER_ID).update();
+                List<VoucherOrder> orders = new ArrayList<>(total);
+                for (int i = 0; i < total; i++) {
+                    VoucherOrder order = new VoucherOrder();
+                    order.setId(redisIdWorker.createId("order"));
+                    order.setUserId(BENCH_USER_ID_BASE + i);
+                    order.setVoucherId(BENCH_VOUCHER_ID);
+                    orders.add(order);
+                }
+
+                StopWatch stopWatch = new StopWatch();
+                stopWatch.start();
+                try {
+                    for (int from = 0; from < total; from += batchSize) {
+                        voucherOrderService.createVoucherOrders(orders.subList(from, Math.min(from + batchSize, total)));
+                    }
+                    stopWatch.stop();
+                    long millis = Math.max(1, stopWatch.getTotalTimeMillis());
+                    log.info("batchSize = {}, {}个订单耗时{}ms, {}单/秒", batchSize, total, millis, total * 1000L / millis);
+                } finally {
+                    voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", BENCH_VOUCHER_ID));
+                }
+            }
+        } finally {
+            voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", BENCH_VOUCHER_ID));
+            seckillVoucherService.removeById(BENCH_VOUCHER_ID);
+        }
+    }
+
     // @Test
     void testHyperLogLog() {
         String[] values = new String[1000];
@@ -0,0 +1,86 @@
+package com.shop.service.impl;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.ZSetOperations;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 关注feed多路归并的测试
+ *
+ * @author humeng
+ */
+class BlogServiceImplTest {
+
+    /**
+     * 模拟ZREVRANGEBYSCORE WITHSCORES的结果,参数为 id,时间,id,时间...
+     */
+    private static Set<ZSetOperations.TypedTuple<String>> source(Object... idAndScores) {
+        Set<ZSetOperations.TypedTuple<String>> tuples = new LinkedHashSet<>();
+        for (int i = 0; i < idAndScores.length; i += 2) {
+            tuples.add(new DefaultTypedTuple<>((String) idAndScores[i], ((Number) idAndScores[i + 1]).doubleValue()));
+        }
+        return tuples;
+    }
+
+    private static List<String> ids(List<ZSetOperations.TypedTuple<String>> page) {
+        return page.stream().map(ZSetOperations.TypedTuple::getValue).collect(Collectors.toList());
+    }
+
+    @Test
+    void mergeByTimeDescending() {
+        List<Object> results = Arrays.asList(
+                source("15", 1500, "11", 1100, "10", 1000),
+                source("14", 1400, "12", 1200),
+                source("13", 1300));
+        assertEquals(Arrays.asList("15", "14", "13", "12", "11", "10"),
+                ids(BlogServiceImpl.mergeFeed(results, 0, 10)));
+        assertEquals(Arrays.asList("15", "14", "13"), ids(BlogServiceImpl.mergeFeed(results, 0, 3)));
+    }
+
+    @Test
+    void mergeSkipsOffset() {
+        List<Object> results = Arrays.asList(
+                source("13", 1000, "11", 900),
+                source("14", 1000, "12", 1000));
+        // 上一页最后是时间1000的14,从时间1000开始查询,偏移量1跳过14
+        assertEquals(Arrays.asList("13", "12", "11"), ids(BlogServiceImpl.mergeFeed(results, 1, 10)));
+        assertTrue(BlogServiceImpl.mergeFeed(results, 4, 10).isEmpty());
+    }
+
+    @Test
+    void mergeKeepsDuplicatesOnce() {
+        // 同一篇笔记既在收件箱中也在作者的发件箱中
+        List<Object> results = Arrays.asList(
+                source("15", 1500, "14", 1400, "13", 1300),
+                source("14", 1400, "12", 1200));
+        assertEquals(Arrays.asList("15", "14", "13", "12"), ids(BlogServiceImpl.mergeFeed(results, 0, 10)));
+        // 重复的笔记不占用偏移量
+        assertEquals(Arrays.asList("13", "12"), ids(BlogServiceImpl.mergeFeed(results, 2, 10)));
+    }
+
+    @Test
+    void mergeBreaksTiesByIdDescending() {
+        List<Object> results = Arrays.asList(
+                source("23", 1000, "21", 1000),
+                source("24", 1000, "22", 1000));
+        // 时间相同时与redis的倒序一致,按id从大到小
+        assertEquals(Arrays.asList("24", "23", "22", "21"), ids(BlogServiceImpl.mergeFeed(results, 0, 10)));
+        assertEquals(Arrays.asList("22", "21"), ids(BlogServiceImpl.mergeFeed(results, 2, 10)));
+    }
+
+    @Test
+    void mergeEmptySources() {
+        assertTrue(BlogServiceImpl.mergeFeed(Collections.emptyList(), 0, 10).isEmpty());
+        assertTrue(BlogServiceImpl.mergeFeed(Arrays.asList(source(), source()), 0, 10).isEmpty());
+    }
+}
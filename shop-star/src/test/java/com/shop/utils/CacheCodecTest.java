@@ -0,0 +1,156 @@
+package com.shop.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.shop.entity.Shop;
+import com.shop.entity.ShopType;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 缓存编解码器的测试,不需要启动spring容器
+ *
+ * @author humeng
+ */
+class CacheCodecTest {
+
+    private static final int COMPRESS_THRESHOLD = 256;
+
+    private final BinaryCacheCodec binary = new BinaryCacheCodec(COMPRESS_THRESHOLD);
+    private final JsonCacheCodec json = new JsonCacheCodec();
+    private final MigratingCacheCodec migrating = new MigratingCacheCodec(binary, json);
+
+    private static Shop shop(String images) {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages(images)
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19, 123_456_789));
+    }
+
+    private static List<ShopType> shopTypes() {
+        return Arrays.asList(
+                new ShopType().setId(1L).setName("美食").setIcon("/types/ms.png").setSort(1),
+                new ShopType().setId(2L).setName("KTV").setIcon("/types/KTV.png").setSort(2));
+    }
+
+    private static <T> RedisData<T> redisData(T data, Long delta) {
+        RedisData<T> redisData = new RedisData<>();
+        redisData.setExpireTime(LocalDateTime.of(2030, 1, 1, 12, 0, 0));
+        redisData.setData(data);
+        redisData.setDelta(delta);
+        return redisData;
+    }
+
+    @Test
+    void shopRoundTrip() {
+        Shop shop = shop("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg");
+        byte[] bytes = binary.encode(shop);
+        assertTrue(binary.canDecode(bytes));
+        assertFalse(json.canDecode(bytes));
+        assertEquals(shop, binary.decode(bytes, Shop.class));
+    }
+
+    @Test
+    void shopTypeListRoundTrip() {
+        List<ShopType> types = shopTypes();
+        assertEquals(types, binary.decodeList(binary.encode(types), ShopType.class));
+        assertEquals(Collections.emptyList(),
+                binary.decodeList(binary.encode(Collections.emptyList()), ShopType.class));
+    }
+
+    @Test
+    void nullRoundTrip() {
+        assertTrue(binary.canEncode(null));
+        assertNull(binary.decode(binary.encode(null), Shop.class));
+
+        RedisData<Shop> decoded = binary.decodeRedisData(binary.encodeRedisData(redisData(null, null)), Shop.class);
+        assertNull(decoded.getData());
+        assertEquals(LocalDateTime.of(2030, 1, 1, 12, 0, 0), decoded.getExpireTime());
+    }
+
+    @Test
+    void redisDataRoundTrip() {
+        RedisData<Shop> withoutDelta = redisData(shop("a.jpg"), null);
+        RedisData<Shop> decoded = binary.decodeRedisData(binary.encodeRedisData(withoutDelta), Shop.class);
+        assertEquals(withoutDelta, decoded);
+        assertNull(decoded.getDelta());
+
+        RedisData<Shop> withDelta = redisData(shop("a.jpg"), 35L);
+        byte[] bytes = binary.encodeRedisData(withDelta);
+        assertEquals(withDelta, binary.decodeRedisData(bytes, Shop.class));
+        // 多出8字节的重建耗时
+        assertEquals(binary.encodeRedisData(withoutDelta).length + 8, bytes.length);
+    }
+
+    @Test
+    void compressionThreshold() {
+        BinaryCacheCodec uncompressed = new BinaryCacheCodec(0);
+
+        // 小于阈值不压缩,两者编码结果相同
+        Shop small = shop("a.jpg");
+        byte[] smallBytes = binary.encode(small);
+        assertTrue(uncompressed.encode(small).length < COMPRESS_THRESHOLD);
+        assertEquals(uncompressed.encode(small).length, smallBytes.length);
+        assertEquals(small, binary.decode(smallBytes, Shop.class));
+
+        // 超过阈值且可以压缩时使用LZ4压缩
+        Shop large = shop(StrUtil.repeatAndJoin("/imgs/shop/large.jpg", 50, ","));
+        byte[] largeBytes = binary.encode(large);
+        assertTrue(largeBytes.length < uncompressed.encode(large).length);
+        assertEquals(large, binary.decode(largeBytes, Shop.class));
+        // 压缩的RedisData
+        RedisData<Shop> redisData = redisData(large, 12L);
+        assertEquals(redisData, binary.decodeRedisData(binary.encodeRedisData(redisData), Shop.class));
+    }
+
+    @Test
+    void fingerprintMismatch() {
+        byte[] bytes = binary.encode(shop("a.jpg"));
+        assertThrows(IllegalStateException.class, () -> binary.decode(bytes, ShopType.class));
+    }
+
+    @Test
+    void migratingDecodesLegacyJson() {
+        // 原来的缓存格式:hutool JSON字符串
+        Shop shop = shop("a.jpg").setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        byte[] shopJson = JSONUtil.toJsonStr(shop).getBytes(StandardCharsets.UTF_8);
+        assertTrue(migrating.canDecode(shopJson));
+        assertEquals(shop, migrating.decode(shopJson, Shop.class));
+
+        List<ShopType> types = shopTypes();
+        byte[] typesJson = JSONUtil.toJsonStr(types).getBytes(StandardCharsets.UTF_8);
+        assertEquals(types, migrating.decodeList(typesJson, ShopType.class));
+
+        RedisData<Shop> redisData = redisData(shop, 20L);
+        byte[] redisDataJson = JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+        assertEquals(redisData, migrating.decodeRedisData(redisDataJson, Shop.class));
+
+        // 新写入的数据使用二进制格式,也能读回
+        byte[] bytes = migrating.encode(shop);
+        assertTrue(binary.canDecode(bytes));
+        assertEquals(shop, migrating.decode(bytes, Shop.class));
+    }
+}
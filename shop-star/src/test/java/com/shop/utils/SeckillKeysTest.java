@@ -0,0 +1,50 @@
+package com.shop.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 秒杀key和库存分配的测试
+ *
+ * @author humeng
+ */
+class SeckillKeysTest {
+
+    @Test
+    void splitStockUnpartitioned() {
+        assertEquals(Collections.singletonList(100), SeckillKeys.splitStock(100, 0));
+    }
+
+    @Test
+    void splitStockRemainderGoesToFirstShards() {
+        assertEquals(Arrays.asList(25, 25, 25, 25), SeckillKeys.splitStock(100, 4));
+        assertEquals(Arrays.asList(4, 3, 3), SeckillKeys.splitStock(10, 3));
+        assertEquals(Arrays.asList(1, 1, 0, 0), SeckillKeys.splitStock(2, 4));
+        assertEquals(Arrays.asList(0, 0), SeckillKeys.splitStock(0, 2));
+    }
+
+    @Test
+    void splitStockKeepsTotal() {
+        for (int partitions = 1; partitions <= 16; partitions++) {
+            for (int stock = 0; stock <= 100; stock++) {
+                List<Integer> stocks = SeckillKeys.splitStock(stock, partitions);
+                assertEquals(partitions, stocks.size());
+                assertEquals(stock, stocks.stream().mapToInt(Integer::intValue).sum());
+            }
+        }
+    }
+
+    @Test
+    void shardKeysShareHashTag() {
+        assertEquals("seckill:stock:{seckill:2}:10", SeckillKeys.stockKey(10L, 2));
+        assertEquals("seckill:order:{seckill:2}:10", SeckillKeys.orderKey(10L, 2));
+        assertEquals("stream.orders:{seckill:2}", SeckillKeys.streamKey(2));
+        assertEquals(3, SeckillKeys.shardOf(7L, 4));
+        assertEquals(1, SeckillKeys.shardOf(-7L, 4));
+    }
+}